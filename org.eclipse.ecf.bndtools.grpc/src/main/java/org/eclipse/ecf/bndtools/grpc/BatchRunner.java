@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.libg.qtokens.QuotedTokenizer;
+
+/**
+ * BatchRunner runs the generations listed in a manifest file in one JVM, concurrently on a bounded pool, instead of
+ * one GrpcGenerator process for each, e.g. for all bnd projects of a workspace. Every line of the manifest is a job:
+ * the working directory of the job, relative to the directory of the manifest, followed by the GrpcGenerator
+ * arguments of the job. Empty lines and lines starting with # are ignored, and arguments with spaces can be quoted.
+ *
+ * <pre> # directory arguments
+ * com.acme.api rxjava3 -I=proto --java_out=src-gen health.proto
+ * com.acme.billing noosgi -I=proto -I=../com.acme.api/proto --java_out=src-gen billing.proto</pre>
+ * <p>
+ * Jobs with the same directory and arguments are run once. The executables are verified once for all jobs before
+ * the pool starts, and the result of every job is reported in a JSON {@link Summary}.
+ *
+ * @author slewis
+ *
+ */
+class BatchRunner {
+
+	private static final Logger log = LoggerFactory.getLogger(BatchRunner.class.getName());
+
+	/**
+	 * The outcome of a batch, written as JSON
+	 */
+	public static class Summary {
+		public int jobs;
+		public int duplicates;
+		public int succeeded;
+		public int failed;
+		public long millis;
+		public List<Job> results = new ArrayList<Job>();
+	}
+
+	/**
+	 * The outcome of one job of a batch
+	 */
+	public static class Job {
+		/**
+		 * The line of the job in the manifest
+		 */
+		public int line;
+		public String directory;
+		public List<String> arguments;
+		/**
+		 * The line of the job with the same directory and arguments whose result this is
+		 */
+		public Integer duplicateOf;
+		public int exitCode;
+		public int files;
+		public long millis;
+		public String diagnostics;
+		/**
+		 * Why the job could not be run, e.g. invalid arguments
+		 */
+		public String error;
+	}
+
+	private final GrpcGenerator generator;
+	private final int threads;
+	private final List<String> defaultArguments;
+
+	/**
+	 * @param threads the maximum number of jobs to run concurrently
+	 * @param defaultArguments the arguments that come before the arguments of every job, e.g. cacheDir=...
+	 */
+	BatchRunner(GrpcGenerator generator, int threads, List<String> defaultArguments) {
+		this.generator = generator;
+		this.threads = threads;
+		this.defaultArguments = defaultArguments;
+	}
+
+	/**
+	 * Run all jobs of the manifest
+	 */
+	Summary run(File manifest) throws Exception {
+		long start = System.currentTimeMillis();
+		File base = manifest.getAbsoluteFile().getParentFile();
+		Summary summary = new Summary();
+		// the job of every distinct directory and arguments, and the jobs that are the same
+		Map<String, Job> distinct = new LinkedHashMap<String, Job>();
+		Map<Job, GenerationRequest> requests = new LinkedHashMap<Job, GenerationRequest>();
+		List<String> lines = Arrays.asList(IO.collect(manifest).split("\r?\n"));
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			List<String> tokens = new ArrayList<String>();
+			for (String token : new QuotedTokenizer(line, " \t").getTokenSet()) {
+				if (!token.isEmpty()) {
+					tokens.add(token);
+				}
+			}
+			Job job = new Job();
+			job.line = i + 1;
+			summary.results.add(job);
+			if (tokens.isEmpty()) {
+				// e.g. a line of only ""
+				job.arguments = Collections.<String> emptyList();
+				job.error = "Missing directory on line " + job.line;
+				continue;
+			}
+			job.directory = IO.getFile(base, tokens.get(0)).getCanonicalPath();
+			job.arguments = new ArrayList<String>(tokens.subList(1, tokens.size()));
+			String key = job.directory + "\n" + String.join("\n", job.arguments);
+			Job first = distinct.get(key);
+			if (first != null) {
+				job.duplicateOf = first.line;
+				summary.duplicates++;
+				continue;
+			}
+			distinct.put(key, job);
+			try {
+				List<String> args = new ArrayList<String>(defaultArguments);
+				args.addAll(job.arguments);
+				String[] arguments = args.toArray(new String[0]);
+				requests.put(job, GenerationRequest.parse(new File(job.directory), arguments).build());
+			} catch (IllegalArgumentException e) {
+				job.error = e.getMessage();
+			}
+		}
+		checkOutputDirs(requests);
+		verifyExes(requests.values());
+		summary.jobs = summary.results.size();
+		runAll(requests);
+		for (Job job : summary.results) {
+			if (job.duplicateOf != null) {
+				Job first = distinct.get(job.directory + "\n" + String.join("\n", job.arguments));
+				job.exitCode = first.exitCode;
+				job.files = first.files;
+				job.diagnostics = first.diagnostics;
+				job.error = first.error;
+			}
+			if (job.exitCode == 0 && job.error == null) {
+				summary.succeeded++;
+			} else {
+				summary.failed++;
+			}
+		}
+		summary.millis = System.currentTimeMillis() - start;
+		return summary;
+	}
+
+	/**
+	 * Concurrent jobs must not write to the same output directory
+	 *
+	 * @throws IllegalArgumentException if two jobs would
+	 */
+	private static void checkOutputDirs(Map<Job, GenerationRequest> requests) {
+		Map<File, Job> outputDirs = new HashMap<File, Job>();
+		for (Map.Entry<Job, GenerationRequest> request : requests.entrySet()) {
+			for (File dir : request.getValue().getOutputDirs()) {
+				Job job = request.getKey();
+				Job other = outputDirs.put(dir, job);
+				if (other != null && other != job)
+					throw new IllegalArgumentException("The jobs on lines " + Math.min(other.line, job.line) + " and "
+							+ Math.max(other.line, job.line) + " both write to " + dir);
+			}
+		}
+	}
+
+	/**
+	 * Copy and verify the executables once for all jobs, before they run concurrently
+	 */
+	private static void verifyExes(Iterable<GenerationRequest> requests) throws IOException {
+		Map<String, GenerationRequest> caches = new LinkedHashMap<String, GenerationRequest>();
+		for (GenerationRequest request : requests) {
+			caches.putIfAbsent(request.getCacheDir() + "\n" + request.getSystemCacheDirs() + "\n"
+					+ request.getExeArtifact() + "\n" + GrpcGenerator.getTargetNames(request), request);
+		}
+		for (GenerationRequest request : caches.values()) {
+			GrpcGenerator.getExeCache(request).getExes(GrpcGenerator.getTargetNames(request));
+		}
+	}
+
+	private void runAll(Map<Job, GenerationRequest> requests) throws Exception {
+		if (requests.isEmpty())
+			return;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, requests.size()), r -> {
+			Thread t = new Thread(r, "GrpcGenerator-batch");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			Map<Job, Future<?>> futures = new LinkedHashMap<Job, Future<?>>();
+			for (Map.Entry<Job, GenerationRequest> request : requests.entrySet()) {
+				futures.put(request.getKey(), executor.submit(() -> run(request.getKey(), request.getValue())));
+			}
+			for (Future<?> future : futures.values()) {
+				ExeCache.getResult(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void run(Job job, GenerationRequest request) {
+		long start = System.currentTimeMillis();
+		try {
+			GenerationResult result = generator.generate(request);
+			job.exitCode = result.getExitCode();
+			job.files = result.getFiles().size();
+			if (!result.getDiagnostics().isEmpty()) {
+				job.diagnostics = result.getDiagnostics();
+			}
+		} catch (Exception e) {
+			log.warn("job on line " + job.line + " failed", e);
+			job.error = e.toString();
+		}
+		job.millis = System.currentTimeMillis() - start;
+		if (log.isDebugEnabled()) {
+			log.debug("job on line " + job.line + " exitCode=" + job.exitCode + " files=" + job.files + " millis="
+					+ job.millis);
+		}
+	}
+}
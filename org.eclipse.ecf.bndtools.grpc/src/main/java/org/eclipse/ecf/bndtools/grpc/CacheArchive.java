@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.io.NonClosingInputStream;
+
+/**
+ * CacheArchive exports the installed entries of an {@link ExeCache} directory into a single zip archive, and imports
+ * such an archive into a cache directory, e.g. to bake the cache into a container image or to restore it from a CI
+ * cache. Imported executables are verified against the digest that names their entry directory.
+ *
+ * @author slewis
+ *
+ */
+class CacheArchive {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheArchive.class.getName());
+
+	private static final Pattern ENTRY_NAME = Pattern.compile("([0-9a-f]{64})/([^/\\\\]+)");
+
+	private final File cacheDir;
+
+	CacheArchive(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Write all installed entries of the cache directory to the archive. Entries are written in sorted order with a
+	 * fixed time, so the same cache always gives the same archive.
+	 *
+	 * @return the number of executables exported
+	 */
+	int exportTo(File archive) throws IOException {
+		File[] dirs = cacheDir.listFiles(f -> f.isDirectory() && f.getName().matches("[0-9a-f]{64}"));
+		if (dirs == null)
+			dirs = new File[0];
+		Arrays.sort(dirs);
+		IO.mkdirs(archive.getAbsoluteFile().getParentFile());
+		Path tmp = Files.createTempFile(archive.getAbsoluteFile().getParentFile().toPath(), archive.getName(),
+				ExeCache.TMP_SUFFIX);
+		int count = 0;
+		try {
+			ExeCache.setReadable(tmp);
+			try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(tmp))) {
+				for (File dir : dirs) {
+					File[] records = dir.listFiles((d, name) -> name.endsWith(ExeCache.RECORD_SUFFIX));
+					if (records == null)
+						continue;
+					Arrays.sort(records);
+					for (File record : records) {
+						String exeName = record.getName().substring(0,
+								record.getName().length() - ExeCache.RECORD_SUFFIX.length());
+						File exe = new File(dir, exeName);
+						if (!exe.isFile())
+							continue;
+						// exe first, so an import installs the record last
+						addEntry(zip, dir.getName() + "/" + exeName, exe);
+						addEntry(zip, dir.getName() + "/" + record.getName(), record);
+						count++;
+					}
+				}
+			}
+			ExeCache.moveAtomically(tmp, archive.toPath());
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("exported " + count + " executables from cacheDir=" + cacheDir.getAbsolutePath() + " to "
+					+ archive.getAbsolutePath());
+		}
+		return count;
+	}
+
+	private static void addEntry(ZipOutputStream zip, String name, File file) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setTime(0L);
+		zip.putNextEntry(entry);
+		IO.copy(file, zip);
+		zip.closeEntry();
+	}
+
+	/**
+	 * Install the entries of the archive that are not yet in the cache directory. Every executable is written to a
+	 * temp file, verified against the digest of its entry directory and atomically renamed, and its record is
+	 * installed after it.
+	 *
+	 * @return the number of executables imported
+	 */
+	int importFrom(File archive) throws IOException {
+		Map<File, byte[]> records = new LinkedHashMap<File, byte[]>();
+		Set<File> installed = new HashSet<File>();
+		try (ZipInputStream zip = new ZipInputStream(IO.stream(archive))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (entry.isDirectory())
+					continue;
+				Matcher m = ENTRY_NAME.matcher(entry.getName());
+				if (!m.matches())
+					throw new IllegalArgumentException("Invalid cache archive entry " + entry.getName());
+				File dir = new File(cacheDir, m.group(1));
+				String name = m.group(2);
+				if (name.endsWith(ExeCache.RECORD_SUFFIX)) {
+					File exe = new File(dir, name.substring(0, name.length() - ExeCache.RECORD_SUFFIX.length()));
+					records.put(exe, IO.read(new NonClosingInputStream(zip)));
+				} else if (name.endsWith(ExeCache.LOCK_SUFFIX) || name.endsWith(ExeCache.TMP_SUFFIX)) {
+					continue;
+				} else {
+					File exe = new File(dir, name);
+					if (install(new NonClosingInputStream(zip), m.group(1), exe)) {
+						installed.add(exe);
+					}
+				}
+			}
+		}
+		for (Map.Entry<File, byte[]> record : records.entrySet()) {
+			File exe = record.getKey();
+			if (installed.contains(exe)) {
+				ExeCache.withEntryLock(exe, () -> ExeCache.writeAtomically(record.getValue(),
+						new File(exe.getParentFile(), exe.getName() + ExeCache.RECORD_SUFFIX)));
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("imported " + installed.size() + " executables from " + archive.getAbsolutePath()
+					+ " to cacheDir=" + cacheDir.getAbsolutePath());
+		}
+		return installed.size();
+	}
+
+	private static boolean install(InputStream in, String digest, File exe) throws IOException {
+		File record = new File(exe.getParentFile(), exe.getName() + ExeCache.RECORD_SUFFIX);
+		boolean[] result = new boolean[1];
+		ExeCache.withEntryLock(exe, () -> {
+			if (record.isFile()) {
+				return;
+			}
+			Path tmp = Files.createTempFile(exe.getParentFile().toPath(), exe.getName(), ExeCache.TMP_SUFFIX);
+			try {
+				MessageDigest md = ExeCache.sha256();
+				try (OutputStream out = new DigestOutputStream(Files.newOutputStream(tmp), md)) {
+					IO.copy(in, out);
+				}
+				String actual = ExeCache.toHex(md);
+				if (!actual.equals(digest)) {
+					throw new IllegalArgumentException(
+							"Corrupt cache archive, digest of " + exe.getName() + " is " + actual + " but expected " + digest);
+				}
+				ExeCache.setExecutable(tmp);
+				ExeCache.moveAtomically(tmp, exe.toPath());
+				result[0] = true;
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		});
+		return result[0];
+	}
+}
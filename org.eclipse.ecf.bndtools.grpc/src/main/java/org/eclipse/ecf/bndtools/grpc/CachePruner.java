@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+
+/**
+ * CachePruner keeps a content addressed cache directory (see {@link ExeCache}) within a size budget. Every entry is a
+ * directory named by a sha256 digest that holds one or more records. The last modified time of the records is used
+ * as the access time of the entry, and the least recently used entries are deleted until the cache fits the budget.
+ * Entries that are locked by another process, or in use by this one, are never deleted.
+ *
+ * @author slewis
+ *
+ */
+class CachePruner {
+
+	private static final Logger log = LoggerFactory.getLogger(CachePruner.class.getName());
+
+	static final long DEFAULT_CACHE_SIZE = 256L * 1024 * 1024;
+	static final String CACHE_SIZE_ENV = "GRPC_GENERATOR_CACHE_SIZE";
+	static final String PRUNED_MARKER = "grpc-generator.pruned";
+	private static final long PRUNE_INTERVAL = TimeUnit.DAYS.toMillis(1);
+	private static final long STALE_TMP_AGE = TimeUnit.HOURS.toMillis(1);
+	private static final Pattern ENTRY_NAME = Pattern.compile("[0-9a-f]{64}");
+
+	private final File cacheDir;
+	private final long maxSize;
+	private final String recordSuffix;
+
+	CachePruner(File cacheDir, long maxSize, String recordSuffix) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		this.recordSuffix = recordSuffix;
+	}
+
+	/**
+	 * Parse a size such as 1048576, 512k, 256m or 2g
+	 */
+	static long parseSize(String size) {
+		String s = size.trim().toLowerCase(Locale.ROOT);
+		long unit = 1L;
+		if (s.endsWith("k")) {
+			unit = 1024L;
+		} else if (s.endsWith("m")) {
+			unit = 1024L * 1024;
+		} else if (s.endsWith("g")) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit != 1L) {
+			s = s.substring(0, s.length() - 1);
+		}
+		try {
+			return Long.parseLong(s.trim()) * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cache size=" + size);
+		}
+	}
+
+	/**
+	 * @return the cache size given by the GRPC_GENERATOR_CACHE_SIZE environment variable, or the default
+	 */
+	static long getDefaultMaxSize() {
+		String size = System.getenv(CACHE_SIZE_ENV);
+		return (size == null || size.trim().isEmpty()) ? DEFAULT_CACHE_SIZE : parseSize(size);
+	}
+
+	/**
+	 * Mark the entry directory holding the given record as used, at most once per hour
+	 */
+	static void touch(File record) {
+		long now = System.currentTimeMillis();
+		if (now - record.lastModified() > TimeUnit.HOURS.toMillis(1)) {
+			record.setLastModified(now);
+		}
+	}
+
+	/**
+	 * @return true if the cache has not been pruned in the last day
+	 */
+	boolean isDue() {
+		File marker = new File(cacheDir, PRUNED_MARKER);
+		return System.currentTimeMillis() - marker.lastModified() > PRUNE_INTERVAL;
+	}
+
+	/**
+	 * Prune the cache in a daemon thread if it is due. The caller can join the returned thread when it's done with
+	 * its own work.
+	 *
+	 * @param inUse entry directories that must not be deleted
+	 * @return the started thread, or <code>null</code> if pruning is not due
+	 */
+	Thread pruneInBackground(Collection<File> inUse) {
+		if (!isDue())
+			return null;
+		Thread t = new Thread(() -> {
+			try {
+				prune(inUse);
+			} catch (Exception e) {
+				log.warn("could not prune cacheDir=" + cacheDir.getAbsolutePath(), e);
+			}
+		}, "GrpcGenerator-prune");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	private static class CacheEntry {
+		final File dir;
+		long size;
+		long accessed;
+
+		CacheEntry(File dir) {
+			this.dir = dir;
+		}
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache fits within the maximum size
+	 *
+	 * @param inUse entry directories that must not be deleted
+	 * @return a one line summary of what was pruned
+	 * @throws IOException if the marker cannot be written
+	 */
+	String prune(Collection<File> inUse) throws IOException {
+		List<CacheEntry> entries = new ArrayList<CacheEntry>();
+		long total = 0L;
+		File[] dirs = cacheDir.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				CacheEntry entry = scan(dir);
+				if (entry != null) {
+					entries.add(entry);
+					total += entry.size;
+				}
+			}
+		}
+		long size = total;
+		int removed = 0;
+		Collections.sort(entries, Comparator.comparingLong(e -> e.accessed));
+		for (CacheEntry entry : entries) {
+			if (size <= maxSize)
+				break;
+			if (inUse.contains(entry.dir))
+				continue;
+			if (delete(entry)) {
+				size -= entry.size;
+				removed++;
+			}
+		}
+		File marker = new File(cacheDir, PRUNED_MARKER);
+		IO.mkdirs(cacheDir);
+		IO.store(Long.toString(size), marker);
+		String summary = "cacheDir=" + cacheDir.getAbsolutePath() + " entries=" + entries.size() + " removed="
+				+ removed + " size=" + size + " freed=" + (total - size) + " maxSize=" + maxSize;
+		if (log.isDebugEnabled()) {
+			log.debug("pruned " + summary);
+		}
+		return summary;
+	}
+
+	private CacheEntry scan(File dir) {
+		if (!dir.isDirectory() || !ENTRY_NAME.matcher(dir.getName()).matches())
+			return null;
+		File[] files = dir.listFiles();
+		if (files == null)
+			return null;
+		CacheEntry entry = new CacheEntry(dir);
+		boolean hasRecord = false;
+		long now = System.currentTimeMillis();
+		for (File f : files) {
+			if (f.getName().endsWith(ExeCache.TMP_SUFFIX) && now - f.lastModified() > STALE_TMP_AGE) {
+				// left behind by a build that was killed while installing
+				IO.delete(f);
+				continue;
+			}
+			entry.size += f.length();
+			if (f.getName().endsWith(recordSuffix)) {
+				hasRecord = true;
+				entry.accessed = Math.max(entry.accessed, f.lastModified());
+			}
+		}
+		// directories without a record may be being installed right now, leave them alone
+		return hasRecord ? entry : null;
+	}
+
+	/**
+	 * Delete the entry while holding all of its locks, records first so that other processes no longer see the entry
+	 * as installed. A process using the entry holds a shared lock, so the entry is skipped.
+	 */
+	private boolean delete(CacheEntry entry) {
+		List<FileChannel> channels = new ArrayList<FileChannel>();
+		try {
+			File[] locks = entry.dir.listFiles((d, name) -> name.endsWith(ExeCache.LOCK_SUFFIX));
+			if (locks != null) {
+				for (File lock : locks) {
+					FileChannel channel = FileChannel.open(lock.toPath(), StandardOpenOption.WRITE);
+					channels.add(channel);
+					FileLock fileLock = channel.tryLock();
+					if (fileLock == null) {
+						if (log.isDebugEnabled()) {
+							log.debug("not pruning locked entry=" + entry.dir);
+						}
+						return false;
+					}
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("pruning entry=" + entry.dir + " size=" + entry.size);
+			}
+			File[] records = entry.dir.listFiles((d, name) -> name.endsWith(recordSuffix));
+			if (records != null) {
+				for (File record : records) {
+					IO.delete(record);
+				}
+			}
+			IO.delete(entry.dir);
+			return true;
+		} catch (IOException | OverlappingFileLockException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("not pruning entry=" + entry.dir + ": " + e);
+			}
+			return false;
+		} finally {
+			for (FileChannel channel : channels) {
+				IO.close(channel);
+			}
+		}
+	}
+}
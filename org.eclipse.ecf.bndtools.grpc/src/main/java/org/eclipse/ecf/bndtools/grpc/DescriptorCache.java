@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.libg.command.Command;
+
+/**
+ * DescriptorCache holds the descriptor sets of the proto files that a generation imports from proto paths without
+ * any of its inputs, e.g. shared schema trees that rarely change. protoc then reads those files from the descriptor
+ * set given by --descriptor_set_in instead of parsing them, and only parses the proto files of the project.
+ * <p>
+ * An entry is a directory named by a digest of the protoc executable, the parse options, and the names and content
+ * of the imported files and everything they import, so the same imports in another checkout have the same key. The
+ * entry holds an <b>imports.pb</b> descriptor set and an <b>imports.pb.sha256</b> record with its digest that is
+ * written after the set is complete, and is kept within a size budget by a {@link CachePruner}.
+ *
+ * @author slewis
+ *
+ */
+class DescriptorCache {
+
+	private static final Logger log = LoggerFactory.getLogger(DescriptorCache.class.getName());
+
+	/**
+	 * The directory of the descriptor sets in the cacheDir
+	 */
+	static final String DESCRIPTORS_DIR = "descriptors";
+	static final String DESCRIPTOR_SET = "imports.pb";
+	private static final String VERSION = "1";
+
+	private final File cacheDir;
+	private final long maxSize;
+
+	DescriptorCache(File cacheDir, long maxSize) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Prune the cache in a daemon thread if it is due
+	 *
+	 * @return the started thread, or <code>null</code> if pruning is not due
+	 */
+	Thread pruneInBackground() {
+		CachePruner pruner = new CachePruner(cacheDir, maxSize, ExeCache.RECORD_SUFFIX);
+		return pruner.pruneInBackground(Collections.<File> emptySet());
+	}
+
+	/**
+	 * Replace the proto paths without inputs by a descriptor set of the files the inputs import from them, which is
+	 * built when it is not cached yet
+	 *
+	 * @param protoc the protoc executable, in a directory named by its digest
+	 * @return the protoc arguments that use the descriptor set, or <code>null</code> if the inputs import nothing from
+	 *         such proto paths or the descriptor set can't be built, in which case the arguments are used as they are
+	 */
+	List<String> getArguments(ProtocArguments protocArguments, File protoc) throws Exception {
+		if (!protocArguments.isSupported() || protocArguments.hasDescriptorSetIn())
+			return null;
+		ProtoGraph graph;
+		try {
+			graph = new ProtoGraph(protocArguments);
+		} catch (IllegalArgumentException e) {
+			// protoc will report it
+			return null;
+		}
+		// the proto paths of the inputs are parsed by every generation
+		Set<String> inputPaths = new HashSet<String>();
+		for (String input : graph.getInputs().values()) {
+			inputPaths.add(getProtoPath(protocArguments, input));
+		}
+		Set<String> names = new TreeSet<String>();
+		Set<String> closure = new TreeSet<String>();
+		for (String input : graph.getInputs().values()) {
+			for (String imported : graph.getTransitiveImports(input)) {
+				String protoPath = getProtoPath(protocArguments, imported);
+				if (protoPath != null && !inputPaths.contains(protoPath)) {
+					names.add(imported);
+					closure.add(imported);
+					closure.addAll(graph.getTransitiveImports(imported));
+				}
+			}
+		}
+		if (names.isEmpty())
+			return null;
+		// protoc looks in the proto paths before the descriptor set
+		for (String name : names) {
+			for (String protoPath : inputPaths) {
+				if (protoPath != null && getFile(protocArguments, protoPath, name).isFile()) {
+					if (log.isDebugEnabled()) {
+						log.debug("not using a descriptor set, " + name + " is also in protoPath=" + protoPath);
+					}
+					return null;
+				}
+			}
+		}
+		MessageDigest md = ExeCache.sha256();
+		update(md, "version", VERSION);
+		update(md, "protoc", protoc.getParentFile().getName());
+		for (String option : protocArguments.getParseOptions()) {
+			update(md, "option", option);
+		}
+		for (String name : names) {
+			update(md, "file", name);
+		}
+		for (String name : closure) {
+			File file = graph.getFile(name);
+			update(md, name, file == null ? "-" : ExeCache.toHex(IO.copy(file, ExeCache.sha256())));
+		}
+		File set = getDescriptorSet(ExeCache.toHex(md), protocArguments, protoc, names);
+		if (set == null)
+			return null;
+		List<String> protoPaths = new ArrayList<String>();
+		for (String protoPath : protocArguments.getProtoPaths()) {
+			if (inputPaths.contains(protoPath)) {
+				protoPaths.add(protoPath);
+			}
+		}
+		return protocArguments.getArguments(protoPaths,
+				Collections.singletonList("--descriptor_set_in=" + set.getAbsolutePath()));
+	}
+
+	/**
+	 * @return the cached descriptor set of the key, which is built first if needed, or <code>null</code> if protoc
+	 *         could not build it
+	 */
+	private File getDescriptorSet(String key, ProtocArguments protocArguments, File protoc, Collection<String> names)
+			throws Exception {
+		File entry = new File(cacheDir, key);
+		File set = new File(entry, DESCRIPTOR_SET);
+		File record = new File(entry, DESCRIPTOR_SET + ExeCache.RECORD_SUFFIX);
+		if (record.isFile() && set.isFile()) {
+			String expected = OutputCache.getDigest(record);
+			if (expected.equals(ExeCache.toHex(IO.copy(set, ExeCache.sha256())))) {
+				CachePruner.touch(record);
+				if (log.isDebugEnabled()) {
+					log.debug("using descriptor set=" + set.getAbsolutePath() + " for " + names.size() + " imports");
+				}
+				return set;
+			}
+			log.warn("descriptor set=" + set.getAbsolutePath() + " does not match digest=" + expected
+					+ ", building it again");
+		}
+		IO.mkdirs(entry);
+		Path tmp = Files.createTempFile(entry.toPath(), DESCRIPTOR_SET, ExeCache.TMP_SUFFIX);
+		try {
+			Command cmd = new Command();
+			cmd.setCwd(protocArguments.getWorkingDirectory());
+			cmd.add(protoc.getAbsolutePath());
+			cmd.add("--descriptor_set_out=" + tmp.toFile().getAbsolutePath());
+			cmd.add("--include_imports");
+			for (String protoPath : protocArguments.getProtoPaths()) {
+				cmd.add("--proto_path=" + protoPath);
+			}
+			cmd.addAll(protocArguments.getParseOptions());
+			cmd.addAll(names);
+			StringBuilder out = new StringBuilder();
+			StringBuilder err = new StringBuilder();
+			int execute = cmd.execute((InputStream) null, out, err);
+			if (execute != 0) {
+				if (log.isDebugEnabled()) {
+					log.debug("could not build descriptor set, exitCode=" + execute + ": " + err);
+				}
+				return null;
+			}
+			String digest = ExeCache.toHex(IO.copy(tmp.toFile(), ExeCache.sha256()));
+			ExeCache.moveAtomically(tmp, set.toPath());
+			String content = "key=" + key + "\nsha256=" + digest + "\nsize=" + set.length() + "\n";
+			ExeCache.writeAtomically(content.getBytes(StandardCharsets.UTF_8), record);
+			if (log.isDebugEnabled()) {
+				log.debug("built descriptor set=" + set.getAbsolutePath() + " for " + names.size() + " imports");
+			}
+			return set;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * @return the first proto path that has the named file, as protoc resolves it, or <code>null</code> if none has it
+	 */
+	private static String getProtoPath(ProtocArguments protocArguments, String name) {
+		for (String protoPath : protocArguments.getProtoPaths()) {
+			if (getFile(protocArguments, protoPath, name).isFile())
+				return protoPath;
+		}
+		return null;
+	}
+
+	private static File getFile(ProtocArguments protocArguments, String protoPath, String name) {
+		return IO.getFile(IO.getFile(protocArguments.getWorkingDirectory(), protoPath), name);
+	}
+
+	private static void update(MessageDigest md, String key, String value) {
+		md.update((key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DescriptorFilter removes the services, methods, messages and enums that a generation does not need from the files
+ * to generate in a descriptor set. The services, methods and top level types that match an include pattern, or all
+ * of them if there is none, and that match no exclude pattern are kept, together with every type they reference
+ * directly or indirectly, so that the generated code compiles. A type that is referenced is kept even if it is
+ * excluded. The source info of the files is renumbered to match, so that the generated javadoc stays with its
+ * element.
+ * <p>
+ * Patterns match fully qualified names, e.g. acme.shop.Shop for a service, acme.shop.Shop.Buy for one of its
+ * methods, and acme.shop.Money for a message, where * matches any characters. A service is kept if any of its
+ * methods are.
+ *
+ * @author slewis
+ *
+ */
+class DescriptorFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(DescriptorFilter.class.getName());
+
+	// FileDescriptorSet
+	private static final int SET_FILE = 1;
+	// FileDescriptorProto
+	private static final int FILE_PACKAGE = 2;
+	private static final int FILE_MESSAGE = 4;
+	private static final int FILE_ENUM = 5;
+	private static final int FILE_SERVICE = 6;
+	private static final int FILE_EXTENSION = 7;
+	private static final int FILE_SOURCE_INFO = 9;
+	// FileDescriptorProto, DescriptorProto, EnumDescriptorProto, ServiceDescriptorProto and MethodDescriptorProto
+	private static final int NAME = 1;
+	// DescriptorProto
+	private static final int MESSAGE_FIELD = 2;
+	private static final int MESSAGE_NESTED = 3;
+	private static final int MESSAGE_EXTENSION = 6;
+	// FieldDescriptorProto
+	private static final int FIELD_EXTENDEE = 2;
+	private static final int FIELD_TYPE_NAME = 6;
+	// ServiceDescriptorProto
+	private static final int SERVICE_METHOD = 2;
+	// MethodDescriptorProto
+	private static final int METHOD_INPUT = 2;
+	private static final int METHOD_OUTPUT = 3;
+	// SourceCodeInfo
+	private static final int SOURCE_LOCATION = 1;
+	// SourceCodeInfo.Location
+	private static final int LOCATION_PATH = 1;
+
+	private final List<Pattern> includes = new ArrayList<Pattern>();
+	private final List<Pattern> excludes = new ArrayList<Pattern>();
+
+	// fully qualified top level type -> its DescriptorProto or EnumDescriptorProto
+	private final Map<String, byte[]> types = new HashMap<String, byte[]>();
+	private final Set<String> messages = new HashSet<String>();
+	// the kept top level types and methods
+	private final Set<String> kept = new HashSet<String>();
+
+	DescriptorFilter(List<String> includes, List<String> excludes) {
+		for (String include : includes) {
+			this.includes.add(toPattern(include));
+		}
+		for (String exclude : excludes) {
+			this.excludes.add(toPattern(exclude));
+		}
+	}
+
+	private static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		String[] parts = glob.split("\\*", -1);
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				regex.append(".*");
+			}
+			if (!parts[i].isEmpty()) {
+				regex.append(Pattern.quote(parts[i]));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private static boolean matches(List<Pattern> patterns, String... names) {
+		for (Pattern pattern : patterns) {
+			for (String name : names) {
+				if (pattern.matcher(name).matches())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSelected(String... names) {
+		return (includes.isEmpty() || matches(includes, names)) && !matches(excludes, names);
+	}
+
+	/**
+	 * Filter the files to generate of a descriptor set
+	 *
+	 * @param descriptorSet a descriptor set with imports and source info
+	 * @param filesToGenerate the names of the files to filter, the other files are kept as they are
+	 * @return the filtered descriptor set
+	 */
+	byte[] filter(byte[] descriptorSet, Collection<String> filesToGenerate) {
+		List<byte[]> files = new ArrayList<byte[]>();
+		ProtoWire.Reader set = new ProtoWire.Reader(descriptorSet);
+		while (set.next()) {
+			if (set.field == SET_FILE) {
+				files.add(set.bytes());
+			}
+		}
+		// all types, and the types and methods selected in the files to generate
+		Deque<String> queue = new ArrayDeque<String>();
+		for (byte[] file : files) {
+			boolean generate = filesToGenerate.contains(getName(file));
+			String prefix = getPrefix(file);
+			ProtoWire.Reader reader = new ProtoWire.Reader(file);
+			while (reader.next()) {
+				if (reader.field == FILE_MESSAGE || reader.field == FILE_ENUM) {
+					byte[] type = reader.bytes();
+					String name = prefix + getName(type);
+					types.put(name, type);
+					if (reader.field == FILE_MESSAGE) {
+						messages.add(name);
+					}
+					if (generate && isSelected(name)) {
+						queue.add(name);
+					}
+				} else if (reader.field == FILE_SERVICE && generate) {
+					String service = prefix + getName(reader.bytes());
+					ProtoWire.Reader methods = reader.message();
+					while (methods.next()) {
+						if (methods.field == SERVICE_METHOD) {
+							byte[] method = methods.bytes();
+							String name = service + "." + getName(method);
+							if (isSelected(service, name)) {
+								kept.add(name);
+								addReferences(method, queue);
+							}
+						}
+					}
+				} else if (reader.field == FILE_EXTENSION && generate) {
+					addReferences(reader.bytes(), queue);
+				}
+			}
+		}
+		// everything the selected types reference
+		while (!queue.isEmpty()) {
+			String name = queue.remove();
+			if (kept.add(name) && messages.contains(name)) {
+				addMessageReferences(types.get(name), queue);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(descriptorSet.length);
+		for (byte[] file : files) {
+			ProtoWire.writeBytes(out, SET_FILE, filesToGenerate.contains(getName(file)) ? filterFile(file) : file);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("kept " + kept.size() + " methods and types, of " + types.size() + " types");
+		}
+		return out.toByteArray();
+	}
+
+	private static String getName(byte[] message) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(message);
+		while (reader.next()) {
+			if (reader.field == NAME)
+				return reader.string();
+		}
+		return "";
+	}
+
+	/**
+	 * @return the package of the file followed by a dot, or an empty string if it has none
+	 */
+	private static String getPrefix(byte[] file) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(file);
+		while (reader.next()) {
+			if (reader.field == FILE_PACKAGE)
+				return reader.string() + ".";
+		}
+		return "";
+	}
+
+	/**
+	 * Add the top level types referenced by the fields of a message and its nested messages
+	 */
+	private void addMessageReferences(byte[] message, Deque<String> queue) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(message);
+		while (reader.next()) {
+			if (reader.field == MESSAGE_FIELD || reader.field == MESSAGE_EXTENSION) {
+				addReferences(reader.bytes(), queue);
+			} else if (reader.field == MESSAGE_NESTED) {
+				addMessageReferences(reader.bytes(), queue);
+			}
+		}
+	}
+
+	/**
+	 * Add the top level types referenced by a field or a method
+	 */
+	private void addReferences(byte[] fieldOrMethod, Deque<String> queue) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(fieldOrMethod);
+		while (reader.next()) {
+			// the extendee and type name of a field are the input and output type of a method
+			if (reader.field == FIELD_EXTENDEE || reader.field == FIELD_TYPE_NAME || reader.field == METHOD_INPUT
+					|| reader.field == METHOD_OUTPUT) {
+				String type = getTopLevelType(reader.string());
+				if (type != null) {
+					queue.add(type);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param typeName a fully qualified type name as protoc resolves it, e.g. .acme.shop.Order.Item
+	 * @return the top level type that is or contains it, or <code>null</code> if it is not in the descriptor set
+	 */
+	private String getTopLevelType(String typeName) {
+		String name = typeName.startsWith(".") ? typeName.substring(1) : typeName;
+		while (!types.containsKey(name)) {
+			int dot = name.lastIndexOf('.');
+			if (dot < 0)
+				return null;
+			name = name.substring(0, dot);
+		}
+		return name;
+	}
+
+	private byte[] filterFile(byte[] file) {
+		String prefix = getPrefix(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(file.length);
+		// old index -> new index of the kept messages, enums and services, and of the methods of every kept service
+		Map<Integer, Integer> messageIndexes = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> enumIndexes = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> serviceIndexes = new HashMap<Integer, Integer>();
+		Map<Integer, Map<Integer, Integer>> methodIndexes = new HashMap<Integer, Map<Integer, Integer>>();
+		byte[] sourceInfo = null;
+		int messageCount = 0;
+		int enumCount = 0;
+		int serviceCount = 0;
+		ProtoWire.Reader reader = new ProtoWire.Reader(file);
+		while (reader.next()) {
+			if (reader.field == FILE_MESSAGE || reader.field == FILE_ENUM) {
+				boolean message = reader.field == FILE_MESSAGE;
+				Map<Integer, Integer> indexes = message ? messageIndexes : enumIndexes;
+				int index = message ? messageCount++ : enumCount++;
+				if (kept.contains(prefix + getName(reader.bytes()))) {
+					indexes.put(index, indexes.size());
+					reader.copyField(out);
+				}
+			} else if (reader.field == FILE_SERVICE) {
+				int index = serviceCount++;
+				Map<Integer, Integer> methods = new HashMap<Integer, Integer>();
+				byte[] service = filterService(reader.bytes(), prefix, methods);
+				if (!methods.isEmpty()) {
+					serviceIndexes.put(index, serviceIndexes.size());
+					methodIndexes.put(index, methods);
+					ProtoWire.writeBytes(out, FILE_SERVICE, service);
+				}
+			} else if (reader.field == FILE_SOURCE_INFO) {
+				sourceInfo = reader.bytes();
+			} else {
+				reader.copyField(out);
+			}
+		}
+		if (sourceInfo != null) {
+			ProtoWire.writeBytes(out, FILE_SOURCE_INFO,
+					filterSourceInfo(sourceInfo, messageIndexes, enumIndexes, serviceIndexes, methodIndexes));
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] filterService(byte[] service, String prefix, Map<Integer, Integer> methodIndexes) {
+		String name = prefix + getName(service);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(service.length);
+		int methodCount = 0;
+		ProtoWire.Reader reader = new ProtoWire.Reader(service);
+		while (reader.next()) {
+			if (reader.field == SERVICE_METHOD) {
+				int index = methodCount++;
+				if (kept.contains(name + "." + getName(reader.bytes()))) {
+					methodIndexes.put(index, methodIndexes.size());
+					reader.copyField(out);
+				}
+			} else {
+				reader.copyField(out);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Drop the locations of removed elements, and renumber the paths of the others
+	 */
+	private static byte[] filterSourceInfo(byte[] sourceInfo, Map<Integer, Integer> messageIndexes,
+			Map<Integer, Integer> enumIndexes, Map<Integer, Integer> serviceIndexes,
+			Map<Integer, Map<Integer, Integer>> methodIndexes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(sourceInfo.length);
+		ProtoWire.Reader reader = new ProtoWire.Reader(sourceInfo);
+		while (reader.next()) {
+			if (reader.field != SOURCE_LOCATION) {
+				reader.copyField(out);
+				continue;
+			}
+			List<Long> path = new ArrayList<Long>();
+			ByteArrayOutputStream rest = new ByteArrayOutputStream();
+			ProtoWire.Reader location = reader.message();
+			while (location.next()) {
+				if (location.field == LOCATION_PATH) {
+					path.addAll(location.varints());
+				} else {
+					location.copyField(rest);
+				}
+			}
+			if (path.size() >= 2) {
+				int kind = path.get(0).intValue();
+				int index = path.get(1).intValue();
+				Map<Integer, Integer> indexes = kind == FILE_MESSAGE ? messageIndexes
+						: kind == FILE_ENUM ? enumIndexes : kind == FILE_SERVICE ? serviceIndexes : null;
+				if (indexes != null) {
+					if (!indexes.containsKey(index))
+						continue;
+					path.set(1, (long) indexes.get(index));
+					if (kind == FILE_SERVICE && path.size() >= 4 && path.get(2) == SERVICE_METHOD) {
+						Map<Integer, Integer> methods = methodIndexes.get(index);
+						int method = path.get(3).intValue();
+						if (!methods.containsKey(method))
+							continue;
+						path.set(3, (long) methods.get(method));
+					}
+				}
+			}
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			for (Long element : path) {
+				ProtoWire.writeVarint(packed, element);
+			}
+			ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+			ProtoWire.writeBytes(filtered, LOCATION_PATH, packed.toByteArray());
+			filtered.write(rest.toByteArray(), 0, rest.size());
+			ProtoWire.writeBytes(out, SOURCE_LOCATION, filtered.toByteArray());
+		}
+		return out.toByteArray();
+	}
+}
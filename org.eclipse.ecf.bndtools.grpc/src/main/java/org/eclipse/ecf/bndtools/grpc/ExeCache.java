@@ -0,0 +1,991 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.lib.strings.Strings;
+
+/**
+ * ExeCache copies the protoc and protoc plugin executables embedded in this bundle into a content addressed cache
+ * directory. Each executable is stored as <b>&lt;cacheDir&gt;/&lt;sha256&gt;/&lt;name&gt;</b>, where sha256 is the
+ * digest of the embedded binary as listed in the <b>/exe/sha256</b> index. Next to the executable a
+ * <b>&lt;name&gt;.sha256</b> record is written once the executable has been completely copied and verified, so
+ * different versions of this bundle never share an executable and a cached executable is used as soon as its record
+ * exists. Entries are installed under a per entry file lock, so concurrent builds share a single extraction. When
+ * the binaries are executable files on the local file system (e.g. in a workspace) they are hard linked instead of
+ * copied.
+ * Read only system cache directories with the same layout, e.g. baked into a build image, are searched first.
+ *
+ * @author slewis
+ *
+ */
+class ExeCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ExeCache.class.getName());
+
+	static final String EXE_DIGESTS = "/exe/sha256";
+	static final String EXE_VERSIONS = "/exe/versions";
+	static final String RECORD_SUFFIX = ".sha256";
+	static final String LOCK_SUFFIX = ".lock";
+	static final String TMP_SUFFIX = ".tmp";
+	static final String SYSTEM_CACHE_DIR_ENV = "GRPC_GENERATOR_SYSTEM_CACHE";
+	/**
+	 * The directory in the cacheDir with the computed digests of binaries that are not in the /exe/sha256 index
+	 */
+	static final String DIGESTS_DIR = "digests";
+	private static final String EXE_PERMISSIONS = "rwxr-xr-x";
+	private static final String FILE_PERMISSIONS = "rw-r--r--";
+	/**
+	 * The permissions a source must have to be linked rather than copied
+	 */
+	private static final String LINK_PERMISSIONS = "r-xr-xr-x";
+	private static final long TRANSFER_SIZE = 1024 * 1024;
+
+	@SuppressWarnings("serial")
+	private static final Map<String, List<String>> targetExeMap = new HashMap<String, List<String>>() {
+		{
+			put(GrpcGenerator.PROTOC_TARGET_NAME, new ArrayList<String>() {
+				{
+					add("/exe/protoc-windows-x86_64");
+					add("/exe/protoc-osx-x86_64");
+					add("/exe/protoc-linux-x86_64");
+				}
+			});
+			put(GrpcGenerator.GRPC_TARGET_NAME, new ArrayList<String>() {
+				{
+					add("/exe/grpc-java-windows-x86_64");
+					add("/exe/grpc-java-osx-x86_64");
+					add("/exe/grpc-java-linux-x86_64");
+				}
+			});
+			put(GrpcGenerator.RXGRPC_TARGET_NAME, new ArrayList<String>() {
+				{
+					add("/exe/rxgrpc-windows-x86_64");
+					add("/exe/rxgrpc-osx-x86_64");
+					add("/exe/rxgrpc-linux-x86_64");
+				}
+			});
+			put(GrpcGenerator.RX3GRPC_TARGET_NAME, new ArrayList<String>() {
+				{
+					add("/exe/rx3grpc-windows-x86_64");
+					add("/exe/rx3grpc-osx-x86_64");
+					add("/exe/rx3grpc-linux-x86_64");
+				}
+			});
+			put(GrpcGenerator.GRPC_OSGI_TARGET_NAME, new ArrayList<String>() {
+				{
+					add("/exe/grpc-osgi-generator-windows-x86_64");
+					add("/exe/grpc-osgi-generator-osx-x86_64");
+					add("/exe/grpc-osgi-generator-linux-x86_64");
+				}
+			});
+		}
+	};
+
+	private static final String OS_NAME = System.getProperty("os.name").toLowerCase();
+
+	private static Map<String, String> digests;
+	private static String versions;
+
+	/**
+	 * Process wide registry of the entries that have been verified, keyed by cache directory and target name. An
+	 * entry is dropped when the watch service reports a change to its directory, so a lookup of a verified entry does
+	 * not touch the file system. If no watch service is available the record is checked on each lookup instead.
+	 */
+	private static final ConcurrentMap<String, Entry> verified = new ConcurrentHashMap<String, Entry>();
+	private static WatchService watcher;
+	private static boolean watcherCreated;
+
+	private static final ConcurrentMap<String, Object> installLocks = new ConcurrentHashMap<String, Object>();
+	/**
+	 * The channels holding a shared lock on the entries in use by this process, keyed by lock file. The
+	 * {@link CachePruner} of another process cannot get the exclusive lock it needs to delete such an entry.
+	 */
+	private static final ConcurrentMap<String, FileChannel> inUseLocks = new ConcurrentHashMap<String, FileChannel>();
+
+	private final File cacheDir;
+	private final List<File> systemCacheDirs;
+	private final File exeArtifact;
+
+	ExeCache(File cacheDir) {
+		this(cacheDir, Collections.<File> emptyList(), null);
+	}
+
+	/**
+	 * @param cacheDir the writable cache directory
+	 * @param systemCacheDirs read only, pre populated cache directories that are searched, in order, before the
+	 *            cacheDir. An executable is only installed into the cacheDir if none of these has it.
+	 * @param exeArtifact the platform specific artifact with the binaries, used when this bundle does not have them.
+	 *            If <code>null</code> the artifact is located by {@link PlatformArtifact}.
+	 */
+	ExeCache(File cacheDir, List<File> systemCacheDirs, File exeArtifact) {
+		this.cacheDir = cacheDir;
+		this.systemCacheDirs = systemCacheDirs;
+		this.exeArtifact = exeArtifact;
+	}
+
+	/**
+	 * Parse a list of system cache directories separated by the path separator
+	 */
+	static List<File> parseSystemCacheDirs(File base, String dirs) {
+		List<File> result = new ArrayList<File>();
+		if (dirs != null) {
+			for (String dir : Strings.split(File.pathSeparator, dirs)) {
+				result.add(IO.getFile(base, dir));
+			}
+		}
+		return result;
+	}
+
+	File getCacheDir() {
+		return cacheDir;
+	}
+
+	static String getOsName() {
+		return OS_NAME;
+	}
+
+	static boolean isWindows() {
+		return getOsName().startsWith("windows");
+	}
+
+	static boolean isMac() {
+		String osName = getOsName();
+		return osName.startsWith("mac") || osName.startsWith("darwin") || osName.startsWith("osx");
+	}
+
+	static boolean isLinux() {
+		return getOsName().startsWith("linux");
+	}
+
+	/**
+	 * @return the platform classifier used in the binary resource names and the companion artifact
+	 */
+	static String getClassifier() {
+		if (isWindows())
+			return "windows-x86_64";
+		else if (isMac())
+			return "osx-x86_64";
+		else if (isLinux())
+			return "linux-x86_64";
+		return null;
+	}
+
+	private static String getResourceName(String targetName) {
+		List<String> exeNames = targetExeMap.get(targetName);
+		if (exeNames == null)
+			throw new IllegalArgumentException("Can't find exes for targetName=" + targetName);
+		// get appropriate for OS
+		if (isWindows())
+			return exeNames.get(0);
+		else if (isMac())
+			return exeNames.get(1);
+		else if (isLinux())
+			return exeNames.get(2);
+		return null;
+	}
+
+	/**
+	 * Read the /exe/sha256 index, which has the same format as the output of sha256sum. The index is generated by the
+	 * build (see bnd.bnd), which separates the entries by commas rather than newlines.
+	 */
+	private static synchronized Map<String, String> getDigests() throws IOException {
+		if (digests == null) {
+			Map<String, String> result = new HashMap<String, String>();
+			URL index = GrpcGenerator.class.getResource(EXE_DIGESTS);
+			if (index != null) {
+				for (String line : Strings.split("[\n,]", IO.collect(index))) {
+					String[] entry = line.trim().split("\\s+\\*?", 2);
+					if (entry.length == 2) {
+						result.put("/exe/" + entry[1], entry[0].toLowerCase());
+					}
+				}
+			}
+			digests = result;
+		}
+		return digests;
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(MessageDigest md) {
+		return Hex.toHexString(md.digest()).toLowerCase();
+	}
+
+	/**
+	 * Find the resource for the binary, in this bundle or else in the platform specific companion artifact
+	 */
+	private URL findResource(String resourceName) throws IOException {
+		URL resource = GrpcGenerator.class.getResource(resourceName);
+		if (resource == null) {
+			resource = PlatformArtifact.getResource(resourceName, getClassifier(), exeArtifact);
+		}
+		// resource not there...there are problems
+		if (resource == null) {
+			throw new IllegalArgumentException(
+					"Corrupt jar, not found " + resourceName + " in this bundle or the " + getClassifier() + " artifact");
+		}
+		return resource;
+	}
+
+	/**
+	 * The digest of a binary that is not in the /exe/sha256 index, e.g. when run from a workspace. It is computed once
+	 * and kept in <b>&lt;cacheDir&gt;/digests</b> by the size and time of the resource and the /exe/versions of the
+	 * bundle, so a warm run only looks at the resource instead of reading all of it.
+	 */
+	private String getComputedDigest(String resourceName, URL resource) throws IOException {
+		String stamp = getStamp(resource);
+		File memo = null;
+		if (stamp != null) {
+			MessageDigest md = sha256();
+			String key = "resource=" + resource + "\n" + stamp + "versions=" + getVersions() + "\n";
+			md.update(key.getBytes(StandardCharsets.UTF_8));
+			memo = new File(new File(cacheDir, DIGESTS_DIR), toHex(md));
+			if (memo.isFile()) {
+				String digest = IO.collect(memo).trim();
+				if (digest.matches("[0-9a-f]{64}"))
+					return digest;
+			}
+		}
+		// not in the index, so the digest has to be computed from the embedded binary
+		if (log.isDebugEnabled()) {
+			log.debug("no indexed digest for resource=" + resourceName + ", computing it");
+		}
+		String digest = toHex(IO.copy(resource, sha256()));
+		if (memo != null) {
+			try {
+				IO.mkdirs(memo.getParentFile());
+				writeAtomically(digest.getBytes(StandardCharsets.UTF_8), memo);
+			} catch (IOException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("could not store the digest of resource=" + resourceName + ": " + e);
+				}
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * @return the size and time of a resource in a jar or a local file, or <code>null</code> if they are not known
+	 */
+	private static String getStamp(URL resource) throws IOException {
+		Path local = getLocalFile(resource);
+		if (local != null)
+			return "size=" + Files.size(local) + "\ntime=" + Files.getLastModifiedTime(local).toMillis() + "\n";
+		URLConnection connection = resource.openConnection();
+		if (!(connection instanceof JarURLConnection))
+			return null;
+		JarURLConnection jarConnection = (JarURLConnection) connection;
+		JarEntry entry = jarConnection.getJarEntry();
+		File jar = new File(jarConnection.getJarFile().getName());
+		return "size=" + entry.getSize() + "\ncrc32=" + Long.toHexString(entry.getCrc()) + "\ntime=" + entry.getTime()
+				+ "\njar=" + jar.lastModified() + "\n";
+	}
+
+	/**
+	 * @return the file of a file: resource, or <code>null</code> if the resource is not a local file
+	 */
+	static Path getLocalFile(URL resource) {
+		if (!"file".equals(resource.getProtocol()))
+			return null;
+		try {
+			Path path = Paths.get(resource.toURI());
+			return Files.isRegularFile(path) ? path : null;
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the content of /exe/versions, or an empty string if this bundle has none
+	 */
+	private static synchronized String getVersions() throws IOException {
+		if (versions == null) {
+			URL resource = GrpcGenerator.class.getResource(EXE_VERSIONS);
+			versions = resource == null ? "" : IO.collect(resource);
+		}
+		return versions;
+	}
+
+	/**
+	 * A cache entry for the executable of a target name on this platform
+	 */
+	private class Entry {
+		final String resourceName;
+		final String digest;
+		final File exe;
+		final File record;
+		final boolean readOnly;
+		private URL resource;
+
+		Entry(String targetName) throws IOException {
+			this.resourceName = getResourceName(targetName);
+			if (resourceName == null)
+				throw new IllegalArgumentException("Cannot find " + targetName + " for os=" + getOsName()
+						+ " to copy to " + cacheDir.getAbsolutePath());
+			String indexed = getDigests().get(resourceName);
+			this.digest = indexed != null ? indexed : getComputedDigest(resourceName, getResource());
+			String exeName = isWindows() ? targetName + ".exe" : targetName;
+			// search the system caches first, they are never written
+			for (File systemCacheDir : systemCacheDirs) {
+				File dir = new File(systemCacheDir, digest);
+				File systemRecord = new File(dir, exeName + RECORD_SUFFIX);
+				File systemExe = new File(dir, exeName);
+				if (systemRecord.isFile()) {
+					// the system cache may have been populated by another user
+					if (!isWindows() && !Files.isExecutable(systemExe.toPath())) {
+						if (log.isDebugEnabled()) {
+							log.debug("skipping system cache file=" + systemExe.getAbsolutePath()
+									+ ", it cannot be executed");
+						}
+						continue;
+					}
+					this.exe = systemExe;
+					this.record = systemRecord;
+					this.readOnly = true;
+					return;
+				}
+			}
+			File dir = new File(cacheDir, digest);
+			this.exe = new File(dir, exeName);
+			this.record = new File(dir, exeName + RECORD_SUFFIX);
+			this.readOnly = false;
+		}
+
+		/**
+		 * The resource is only needed to install the exe, so it is looked up lazily
+		 */
+		synchronized URL getResource() throws IOException {
+			if (resource == null) {
+				resource = findResource(resourceName);
+			}
+			return resource;
+		}
+
+		/**
+		 * The record is only written after the exe is complete
+		 */
+		boolean isCached() {
+			return record.isFile();
+		}
+
+		File get() throws IOException {
+			if (!isCached()) {
+				withEntryLock(exe, () -> {
+					// another process may have installed it while we were waiting for the lock
+					if (!isCached()) {
+						install(resourceName, getResource(), digest, exe, record);
+					} else if (log.isDebugEnabled()) {
+						log.debug("file=" + exe.getAbsolutePath() + " was installed by another process");
+					}
+				});
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("cache includes file=" + exe.getAbsolutePath());
+			}
+			return exe;
+		}
+	}
+
+	private String getVerifiedKey(String targetName) {
+		return cacheDir.getAbsolutePath() + File.pathSeparator + targetName;
+	}
+
+	private Entry getVerified(String targetName) {
+		WatchService ws = getWatcher();
+		if (ws != null) {
+			processWatchEvents(ws);
+		}
+		Entry entry = verified.get(getVerifiedKey(targetName));
+		if (entry != null && ws == null && !entry.isCached()) {
+			verified.remove(getVerifiedKey(targetName), entry);
+			return null;
+		}
+		return entry;
+	}
+
+	private void setVerified(String targetName, Entry entry) throws IOException {
+		// record the access before watching, so the touch is not seen as a change
+		if (!entry.readOnly) {
+			lockInUse(entry);
+			CachePruner.touch(entry.record);
+		}
+		WatchService ws = getWatcher();
+		if (ws != null) {
+			try {
+				entry.exe.getParentFile().toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (IOException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("cannot watch " + entry.exe.getParentFile() + ": " + e);
+				}
+				return;
+			}
+		}
+		verified.put(getVerifiedKey(targetName), entry);
+	}
+
+	/**
+	 * @return the entry directories of all executables verified in this process
+	 */
+	static Set<File> getInUseDirs() {
+		Set<File> result = new HashSet<File>();
+		for (Entry entry : verified.values()) {
+			result.add(entry.exe.getParentFile());
+		}
+		return result;
+	}
+
+	private static synchronized WatchService getWatcher() {
+		if (!watcherCreated) {
+			watcherCreated = true;
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+			} catch (IOException | UnsupportedOperationException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("no watch service for cache directories: " + e);
+				}
+			}
+		}
+		return watcher;
+	}
+
+	private static void processWatchEvents(WatchService ws) {
+		WatchKey key;
+		while ((key = ws.poll()) != null) {
+			key.pollEvents();
+			key.cancel();
+			Path dir = (Path) key.watchable();
+			for (Map.Entry<String, Entry> e : verified.entrySet()) {
+				if (e.getValue().exe.getParentFile().toPath().equals(dir)) {
+					if (log.isDebugEnabled()) {
+						log.debug("cache directory=" + dir + " changed, verifying " + e.getValue().exe + " again");
+					}
+					verified.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the cached executable for the given target name, copying the embedded binary into the cache if it's not
+	 * already present.
+	 *
+	 * @param targetName the name of the executable (e.g. protoc or protoc-gen-grpc-java)
+	 * @return the cached executable. Will not be <code>null</code>.
+	 * @throws IOException if the executable cannot be copied into the cache
+	 */
+	File getExe(String targetName) throws IOException {
+		Entry entry = getVerified(targetName);
+		if (entry == null) {
+			entry = new Entry(targetName);
+			entry.get();
+			setVerified(targetName, entry);
+		}
+		return entry.exe;
+	}
+
+	/**
+	 * Get the cached executables for all the given target names. The executables that are not already in the cache
+	 * are installed concurrently.
+	 *
+	 * @param targetNames the names of the executables
+	 * @return map of target name to cached executable, in the order of the given target names
+	 * @throws IOException if any of the executables cannot be copied into the cache
+	 */
+	Map<String, File> getExes(Collection<String> targetNames) throws IOException {
+		Map<String, File> result = new LinkedHashMap<String, File>();
+		Map<String, Entry> missing = new LinkedHashMap<String, Entry>();
+		for (String targetName : targetNames) {
+			Entry entry = getVerified(targetName);
+			if (entry == null) {
+				entry = new Entry(targetName);
+				if (entry.isCached()) {
+					setVerified(targetName, entry);
+				} else {
+					missing.put(targetName, entry);
+				}
+			}
+			result.put(targetName, entry.exe);
+		}
+		if (missing.size() == 1) {
+			missing.values().iterator().next().get();
+		} else if (!missing.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("installing " + missing.size() + " executables into cacheDir=" + cacheDir.getAbsolutePath());
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(
+					Math.min(missing.size(), Runtime.getRuntime().availableProcessors()), r -> {
+						Thread t = new Thread(r, "GrpcGenerator-install");
+						t.setDaemon(true);
+						return t;
+					});
+			try {
+				List<Future<File>> futures = new ArrayList<Future<File>>();
+				for (Entry entry : missing.values()) {
+					futures.add(executor.submit(entry::get));
+				}
+				for (Future<File> future : futures) {
+					getResult(future);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		for (Map.Entry<String, Entry> e : missing.entrySet()) {
+			setVerified(e.getKey(), e.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * Install and verify the executables for all the given target names. Unlike {@link #getExes(Collection)}, the
+	 * executables that are already in the writable cache are verified against their digest, and installed again if
+	 * they don't match.
+	 *
+	 * @param targetNames the names of the executables
+	 * @return map of target name to cached executable, in the order of the given target names
+	 * @throws IOException if any of the executables cannot be copied into the cache
+	 */
+	Map<String, File> prefetch(Collection<String> targetNames) throws IOException {
+		for (String targetName : targetNames) {
+			Entry entry = new Entry(targetName);
+			if (entry.isCached() && !entry.readOnly) {
+				String actual;
+				try {
+					actual = toHex(IO.copy(entry.exe, sha256()));
+				} catch (IOException e) {
+					actual = e.toString();
+				}
+				if (!actual.equals(entry.digest)) {
+					log.warn("cached file=" + entry.exe.getAbsolutePath() + " does not match digest=" + entry.digest
+							+ ", installing it again");
+					withEntryLock(entry.exe, () -> {
+						IO.delete(entry.record);
+						IO.delete(entry.exe);
+					});
+					verified.remove(getVerifiedKey(targetName));
+				}
+			}
+		}
+		return getExes(targetNames);
+	}
+
+	/**
+	 * @return the names of all executables embedded in this bundle
+	 */
+	static List<String> getTargetNames() {
+		List<String> result = new ArrayList<String>(targetExeMap.keySet());
+		Collections.sort(result);
+		return result;
+	}
+
+	static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while installing executables");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	interface EntryAction {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Hold a shared lock on the cache entry for as long as this process runs, so that it's not pruned while the exe is
+	 * in use. The entry is installed again if it was pruned before the lock was granted.
+	 */
+	private static void lockInUse(Entry entry) throws IOException {
+		File exe = entry.exe;
+		synchronized (installLocks.computeIfAbsent(exe.getAbsolutePath(), k -> new Object())) {
+			File lockFile = new File(exe.getParentFile(), exe.getName() + LOCK_SUFFIX);
+			while (true) {
+				FileChannel held = inUseLocks.get(lockFile.getAbsolutePath());
+				if (held != null && lockFile.isFile() && entry.isCached())
+					return;
+				unlockInUse(exe);
+				entry.get();
+				FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				try {
+					lockChannel.lock(0L, Long.MAX_VALUE, true);
+				} catch (IOException | RuntimeException e) {
+					IO.close(lockChannel);
+					throw e;
+				}
+				inUseLocks.put(lockFile.getAbsolutePath(), lockChannel);
+			}
+		}
+	}
+
+	/**
+	 * Release the shared lock on the cache entry of the given exe, if this process holds it. A process can't hold a
+	 * shared and an exclusive lock on the same file.
+	 */
+	private static void unlockInUse(File exe) {
+		File lockFile = new File(exe.getParentFile(), exe.getName() + LOCK_SUFFIX);
+		FileChannel lockChannel = inUseLocks.remove(lockFile.getAbsolutePath());
+		if (lockChannel != null) {
+			// closing the channel releases the lock
+			IO.close(lockChannel);
+		}
+	}
+
+	/**
+	 * Run the action while holding the lock of the cache entry for the given exe. Only one thread per process and one
+	 * process per cache entry holds the lock.
+	 */
+	static void withEntryLock(File exe, EntryAction action) throws IOException {
+		synchronized (installLocks.computeIfAbsent(exe.getAbsolutePath(), k -> new Object())) {
+			unlockInUse(exe);
+			File dir = exe.getParentFile();
+			IO.mkdirs(dir);
+			File lockFile = new File(dir, exe.getName() + LOCK_SUFFIX);
+			try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				// closing the channel releases the lock
+				lockChannel.lock();
+				// the entry may have been pruned while we were waiting for the lock
+				IO.mkdirs(dir);
+				action.run();
+			}
+		}
+	}
+
+	/**
+	 * Install the embedded resource as the given exe. The resource is linked or copied into a temp file in the same
+	 * directory, which is verified and then atomically renamed to the exe, so the exe is never seen partially written.
+	 * The record is installed the same way, last.
+	 */
+	private void install(String resourceName, URL resource, String digest, File exe, File record)
+			throws IOException {
+		String tmpName = exe.getName() + "." + Long.toHexString(System.nanoTime()) + TMP_SUFFIX;
+		Path tmp = exe.getParentFile().toPath().resolve(tmpName);
+		try {
+			Path local = getLocalFile(resource);
+			String recordContent;
+			if (local != null && linkFile(local, tmp)) {
+				// the link is the source, so it is verified as it is installed
+				recordContent = verify(resourceName, digest, tmp) + "install=link\n";
+			} else {
+				recordContent = extract(resourceName, resource, digest, tmp);
+				setExecutable(tmp);
+			}
+			moveAtomically(tmp, exe.toPath());
+			writeAtomically(recordContent.getBytes(StandardCharsets.UTF_8), record);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Hard link the target to the source. As the link shares the inode and so the permissions of the source, this is
+	 * only done when the source can already be read and executed by all users, so the source (e.g. the exe directory
+	 * of a workspace) is never changed.
+	 */
+	private static boolean linkFile(Path source, Path target) {
+		try {
+			Set<PosixFilePermission> required = PosixFilePermissions.fromString(LINK_PERMISSIONS);
+			if (!isWindows() && !Files.getPosixFilePermissions(source).containsAll(required))
+				return false;
+			Files.createLink(target, source);
+			if (log.isDebugEnabled()) {
+				log.debug("linked " + target + " to " + source);
+			}
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			// e.g. another file system
+			if (log.isDebugEnabled()) {
+				log.debug("could not link " + target + " to " + source + ": " + e);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Extract the resource into the temp file, verifying it while it's copied
+	 *
+	 * @return the record for the extracted exe
+	 */
+	private static String extract(String resourceName, URL resource, String digest, Path tmp) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("copying embedded resource=" + resourceName + " to " + tmp);
+		}
+		Path local = getLocalFile(resource);
+		if (local != null) {
+			copyFile(local, tmp);
+			return verify(resourceName, digest, tmp);
+		}
+		// a jar entry is usually compressed, so it has to be inflated through a stream
+		URLConnection connection = resource.openConnection();
+		long expectedSize = -1L;
+		long expectedCrc = -1L;
+		InputStream in;
+		if (connection instanceof JarURLConnection) {
+			// read the entry directly from the (cached) jar file so size and crc are known up front
+			JarURLConnection jarConnection = (JarURLConnection) connection;
+			JarEntry entry = jarConnection.getJarEntry();
+			expectedSize = entry.getSize();
+			expectedCrc = entry.getCrc();
+			in = jarConnection.getJarFile().getInputStream(entry);
+		} else {
+			in = connection.getInputStream();
+		}
+		MessageDigest md = sha256();
+		CRC32 crc = new CRC32();
+		long size;
+		try (ReadableByteChannel source = new ChecksumChannel(Channels.newChannel(in), md, crc);
+				FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			size = transfer(source, out, expectedSize);
+			out.force(true);
+		}
+		if (expectedSize >= 0 && size != expectedSize) {
+			throw new IllegalArgumentException(
+					"Corrupt jar, size of " + resourceName + " is " + size + " but expected " + expectedSize);
+		}
+		if (expectedCrc >= 0 && crc.getValue() != expectedCrc) {
+			throw new IllegalArgumentException("Corrupt jar, crc of " + resourceName + " is "
+					+ Long.toHexString(crc.getValue()) + " but expected " + Long.toHexString(expectedCrc));
+		}
+		String actual = toHex(md);
+		if (!actual.equals(digest)) {
+			throw new IllegalArgumentException(
+					"Corrupt jar, digest of " + resourceName + " is " + actual + " but expected " + digest);
+		}
+		return createRecord(resourceName, digest, size, crc.getValue());
+	}
+
+	/**
+	 * Copy a local file with transferTo, so the file system or the kernel copies it without it passing through the
+	 * heap
+	 */
+	private static void copyFile(Path source, Path tmp) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0L;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			out.force(true);
+		}
+	}
+
+	/**
+	 * Verify the installed file against the digest, reading it through a mapped buffer
+	 *
+	 * @return the record for the file
+	 */
+	private static String verify(String resourceName, String digest, Path file) throws IOException {
+		MessageDigest md = sha256();
+		CRC32 crc = new CRC32();
+		long size;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = in.size();
+			if (isWindows()) {
+				// a mapped file can't be renamed on windows until the mapping is garbage collected
+				ByteBuffer buffer = ByteBuffer.allocateDirect((int) TRANSFER_SIZE);
+				while (in.read(buffer) > 0) {
+					buffer.flip();
+					md.update(buffer.duplicate());
+					crc.update(buffer);
+					buffer.clear();
+				}
+			} else {
+				for (long position = 0L; position < size; position += TRANSFER_SIZE) {
+					MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(TRANSFER_SIZE, size - position));
+					md.update(buffer.duplicate());
+					crc.update(buffer);
+				}
+			}
+		}
+		String actual = toHex(md);
+		if (!actual.equals(digest)) {
+			throw new IllegalArgumentException(
+					"Corrupt file, digest of " + resourceName + " is " + actual + " but expected " + digest);
+		}
+		return createRecord(resourceName, digest, size, crc.getValue());
+	}
+
+	private static long transfer(ReadableByteChannel source, FileChannel out, long expectedSize) throws IOException {
+		long count = expectedSize > 0 ? expectedSize : TRANSFER_SIZE;
+		long position = 0L;
+		long n;
+		while ((n = out.transferFrom(source, position, count)) > 0) {
+			position += n;
+		}
+		return position;
+	}
+
+	/**
+	 * Channel that updates a digest and crc with all bytes read through it, so the extracted binary can be verified
+	 * without reading it a second time
+	 */
+	private static class ChecksumChannel implements ReadableByteChannel {
+		private final ReadableByteChannel channel;
+		private final MessageDigest md;
+		private final CRC32 crc;
+
+		ChecksumChannel(ReadableByteChannel channel, MessageDigest md, CRC32 crc) {
+			this.channel = channel;
+			this.md = md;
+			this.crc = crc;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int start = dst.position();
+			int n = channel.read(dst);
+			if (n > 0) {
+				ByteBuffer read = dst.duplicate();
+				read.flip();
+				read.position(start);
+				md.update(read.duplicate());
+				crc.update(read);
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * If not windows, set perms to 0755, so a shared cache (e.g. a system cache) can be used by all users
+	 */
+	static void setExecutable(Path path) throws IOException {
+		setPermissions(path, EXE_PERMISSIONS);
+	}
+
+	/**
+	 * If not windows, set perms to 0644, as temp files are only readable by the owner
+	 */
+	static void setReadable(Path path) throws IOException {
+		setPermissions(path, FILE_PERMISSIONS);
+	}
+
+	private static void setPermissions(Path path, String permissions) throws IOException {
+		if (!isWindows()) {
+			if (log.isDebugEnabled()) {
+				log.debug("setting permissions=" + permissions + " for file=" + path);
+			}
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+		}
+	}
+
+	static void writeAtomically(byte[] content, File target) throws IOException {
+		Path tmp = Files.createTempFile(target.getParentFile().toPath(), target.getName(), TMP_SUFFIX);
+		try {
+			setReadable(tmp);
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				out.write(ByteBuffer.wrap(content));
+				out.force(true);
+			}
+			moveAtomically(tmp, target.toPath());
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	static void moveAtomically(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String createRecord(String resourceName, String digest, long size, long crc) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("resource=").append(resourceName).append('\n');
+		sb.append("sha256=").append(digest).append('\n');
+		sb.append("size=").append(size).append('\n');
+		if (crc >= 0) {
+			sb.append("crc32=").append(Long.toHexString(crc)).append('\n');
+		}
+		String versions = getVersions();
+		if (!versions.isEmpty()) {
+			sb.append("versions=").append(versions.trim().replaceAll("\\s+", ",")).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,620 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+
+/**
+ * GenerationRequest is an immutable description of one generation, to be run by
+ * {@link GrpcGenerator#generate(GenerationRequest)}. A request is made with a {@link Builder}, or parsed from the
+ * {@link GrpcGenerator} command line arguments with {@link #parse(File, String...)}.
+ * <p>
+ * The output directories are passed to protoc as given, so relative directories are relative to the working
+ * directory, like the proto paths and files in the protoc arguments.
+ * </p>
+ *
+ * @author slewis
+ *
+ */
+public final class GenerationRequest {
+
+	private static final Logger log = LoggerFactory.getLogger(GenerationRequest.class.getName());
+
+	private final File workingDirectory;
+	private final List<String> protocArguments;
+	private final String javaOut;
+	private final String grpcOut;
+	private final String rxgrpcOut;
+	private final String grpcOsgiOut;
+	private final boolean grpc;
+	private final boolean osgi;
+	private final boolean rxjava3;
+	private final boolean multiplex;
+	private final int shards;
+	private final boolean incremental;
+	private final boolean ignoreComments;
+	private final boolean descriptorCache;
+	private final boolean compressArchive;
+	private final List<String> includes;
+	private final List<String> excludes;
+	private final File cacheDir;
+	private final List<File> systemCacheDirs;
+	private final File exeArtifact;
+	private final long cacheSize;
+	private final File outputCache;
+	private final long outputCacheSize;
+	private final OutputStream out;
+	private final OutputStream err;
+
+	private GenerationRequest(Builder builder) {
+		this.workingDirectory = builder.workingDirectory;
+		this.protocArguments = Collections.unmodifiableList(new ArrayList<String>(builder.protocArguments));
+		this.javaOut = builder.javaOut;
+		this.grpcOut = builder.grpcOut;
+		this.rxgrpcOut = builder.rxgrpcOut;
+		this.grpcOsgiOut = builder.grpcOsgiOut;
+		this.grpc = builder.grpc;
+		this.osgi = builder.osgi;
+		this.rxjava3 = builder.rxjava3;
+		this.multiplex = builder.multiplex;
+		this.shards = builder.shards;
+		this.incremental = builder.incremental;
+		this.ignoreComments = builder.ignoreComments;
+		this.descriptorCache = builder.descriptorCache;
+		this.compressArchive = builder.compressArchive;
+		this.includes = Collections.unmodifiableList(new ArrayList<String>(builder.includes));
+		this.excludes = Collections.unmodifiableList(new ArrayList<String>(builder.excludes));
+		this.cacheDir = builder.cacheDir;
+		this.systemCacheDirs = Collections.unmodifiableList(new ArrayList<File>(builder.systemCacheDirs));
+		this.exeArtifact = builder.exeArtifact;
+		this.cacheSize = builder.cacheSize;
+		this.outputCache = builder.outputCache;
+		this.outputCacheSize = builder.outputCacheSize;
+		this.out = builder.out;
+		this.err = builder.err;
+	}
+
+	/**
+	 * @return the directory protoc runs in
+	 */
+	public File getWorkingDirectory() {
+		return workingDirectory;
+	}
+
+	/**
+	 * @return the arguments passed on to protoc, e.g. -I=proto and the proto files
+	 */
+	public List<String> getProtocArguments() {
+		return protocArguments;
+	}
+
+	/**
+	 * @return the --java_out directory, or <code>null</code> if no java code is generated
+	 */
+	public String getJavaOut() {
+		return javaOut;
+	}
+
+	/**
+	 * @return the directory for the grpc-java code
+	 */
+	public String getGrpcOut() {
+		return grpcOut != null ? grpcOut : javaOut;
+	}
+
+	/**
+	 * @return the directory for the reactivex-grpc code
+	 */
+	public String getRxgrpcOut() {
+		return rxgrpcOut != null ? rxgrpcOut : javaOut;
+	}
+
+	/**
+	 * @return the directory for the grpc-osgi-generator code
+	 */
+	public String getGrpcOsgiOut() {
+		return grpcOsgiOut != null ? grpcOsgiOut : javaOut;
+	}
+
+	/**
+	 * @return true if grpc-java code is generated, which needs java code to be generated
+	 */
+	public boolean isGrpc() {
+		return grpc && javaOut != null;
+	}
+
+	/**
+	 * @return true if reactivex-grpc and grpc-osgi-generator code is generated, which needs grpc-java code to be
+	 *         generated
+	 */
+	public boolean isOsgi() {
+		return osgi && isGrpc();
+	}
+
+	/**
+	 * @return true if the reactivex version 3 api is used
+	 */
+	public boolean isRxjava3() {
+		return rxjava3;
+	}
+
+	/**
+	 * @return true if the plugins are run concurrently by this generator rather than one after the other by protoc
+	 */
+	public boolean isMultiplex() {
+		return multiplex;
+	}
+
+	/**
+	 * @return the maximum number of protoc processes the inputs are split over, 1 to generate all inputs with one
+	 *         protoc
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * @return true if the generation is skipped when its inputs, executables and arguments did not change since the
+	 *         last successful generation
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @return true if changes to the comments and layout of the proto files are not a reason to generate again
+	 */
+	public boolean isIgnoreComments() {
+		return ignoreComments;
+	}
+
+	/**
+	 * @return true if the proto files of proto paths without inputs are taken from descriptor sets cached in the
+	 *         cacheDir, rather than parsed by every generation
+	 */
+	public boolean isDescriptorCache() {
+		return descriptorCache;
+	}
+
+	/**
+	 * @return true if the files in an output archive, e.g. --java_out=src.srcjar, are compressed rather than stored
+	 */
+	public boolean isCompressArchive() {
+		return compressArchive;
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public List<File> getSystemCacheDirs() {
+		return systemCacheDirs;
+	}
+
+	/**
+	 * @return the patterns of the fully qualified services, methods, messages and enums to generate, all if empty
+	 */
+	public List<String> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * @return the patterns of the fully qualified services, methods, messages and enums not to generate
+	 */
+	public List<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @return true if the inputs are filtered by includes or excludes
+	 */
+	boolean isFiltered() {
+		return !includes.isEmpty() || !excludes.isEmpty();
+	}
+
+	/**
+	 * @return the platform specific artifact with the binaries, or <code>null</code> to locate it
+	 */
+	public File getExeArtifact() {
+		return exeArtifact;
+	}
+
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @return the directory of the cache of generated files, or <code>null</code> if generated files are not cached
+	 */
+	public File getOutputCache() {
+		return outputCache;
+	}
+
+	public long getOutputCacheSize() {
+		return outputCacheSize;
+	}
+
+	/**
+	 * @return the stream for the protoc standard output, or <code>null</code> to discard it
+	 */
+	public OutputStream getOut() {
+		return out;
+	}
+
+	/**
+	 * @return the stream for the protoc error output, or <code>null</code> to only collect it in the
+	 *         {@link GenerationResult#getDiagnostics() diagnostics}
+	 */
+	public OutputStream getErr() {
+		return err;
+	}
+
+	/**
+	 * The output directories of this request, without duplicates, resolved against the working directory
+	 */
+	List<File> getOutputDirs() {
+		List<File> dirs = new ArrayList<File>();
+		List<String> outs = new ArrayList<String>();
+		if (javaOut != null) {
+			outs.add(javaOut);
+		}
+		if (isGrpc()) {
+			outs.add(getGrpcOut());
+		}
+		if (isOsgi()) {
+			outs.add(getRxgrpcOut());
+			outs.add(getGrpcOsgiOut());
+		}
+		for (String o : outs) {
+			// the directory may follow plugin parameters, e.g. lite:src-gen
+			File dir = IO.getFile(workingDirectory, ProtocArguments.splitOut(o)[1]);
+			if (!dirs.contains(dir)) {
+				dirs.add(dir);
+			}
+		}
+		return dirs;
+	}
+
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.workingDirectory = workingDirectory;
+		builder.protocArguments.addAll(protocArguments);
+		builder.javaOut = javaOut;
+		builder.grpcOut = grpcOut;
+		builder.rxgrpcOut = rxgrpcOut;
+		builder.grpcOsgiOut = grpcOsgiOut;
+		builder.grpc = grpc;
+		builder.osgi = osgi;
+		builder.rxjava3 = rxjava3;
+		builder.multiplex = multiplex;
+		builder.shards = shards;
+		builder.incremental = incremental;
+		builder.ignoreComments = ignoreComments;
+		builder.descriptorCache = descriptorCache;
+		builder.compressArchive = compressArchive;
+		builder.includes.addAll(includes);
+		builder.excludes.addAll(excludes);
+		builder.cacheDir = cacheDir;
+		builder.systemCacheDirs = new ArrayList<File>(systemCacheDirs);
+		builder.exeArtifact = exeArtifact;
+		builder.cacheSize = cacheSize;
+		builder.outputCache = outputCache;
+		builder.outputCacheSize = outputCacheSize;
+		builder.out = out;
+		builder.err = err;
+		return builder;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Parse the {@link GrpcGenerator} command line arguments. Relative directories are resolved against the working
+	 * directory.
+	 *
+	 * @param workingDirectory the directory protoc runs in
+	 * @param args the arguments
+	 * @return a builder for the request, so that the caller can set the streams
+	 */
+	public static Builder parse(File workingDirectory, String... args) {
+		Builder builder = new Builder().workingDirectory(workingDirectory);
+		String systemCacheDirArg = null;
+		for (Iterator<String> it = Arrays.asList(args).iterator(); it.hasNext();) {
+			String arg = it.next();
+			String value = arg.indexOf('=') < 0 ? null : arg.substring(arg.indexOf('=') + 1);
+			if (arg.equals("noosgi")) {
+				builder.osgi(false);
+			} else if (arg.equals("nogrpc")) {
+				// 'nogrpc' implies noosgi
+				builder.grpc(false);
+			} else if (arg.equals("rxjava3")) {
+				builder.rxjava3(true);
+			} else if (arg.equals("nomux")) {
+				builder.multiplex(false);
+			} else if (arg.equals("mux")) {
+				builder.multiplex(true);
+			} else if (arg.equals("compressArchive")) {
+				builder.compressArchive(true);
+			} else if (arg.equals("ignoreComments")) {
+				builder.ignoreComments(true);
+			} else if (arg.equals("nodescriptorCache")) {
+				builder.descriptorCache(false);
+			} else if (arg.equals("noincremental")) {
+				builder.incremental(false);
+			} else if (arg.equals("shards")) {
+				builder.shards(Runtime.getRuntime().availableProcessors());
+			} else if (arg.startsWith("shards=")) {
+				builder.shards(Integer.parseInt(value));
+			} else if (arg.equals(GeneratorDaemon.DAEMON_ARG) || arg.startsWith(GeneratorDaemon.DAEMON_ARG + "=")) {
+				// only for the forwarding client
+			} else if (arg.startsWith("include=")) {
+				for (String pattern : value.split(",")) {
+					builder.include(pattern.trim());
+				}
+			} else if (arg.startsWith("exclude=")) {
+				for (String pattern : value.split(",")) {
+					builder.exclude(pattern.trim());
+				}
+			} else if (arg.startsWith("cacheDir=")) {
+				builder.cacheDir(IO.getFile(workingDirectory, value));
+			} else if (arg.startsWith("systemCacheDir=")) {
+				systemCacheDirArg = value;
+			} else if (arg.startsWith("exeArtifact=")) {
+				builder.exeArtifact(IO.getFile(workingDirectory, value));
+			} else if (arg.startsWith("cacheSize=")) {
+				builder.cacheSize(CachePruner.parseSize(value));
+			} else if (arg.startsWith("outputCache=")) {
+				builder.outputCache(IO.getFile(workingDirectory, value));
+			} else if (arg.startsWith("outputCacheSize=")) {
+				builder.outputCacheSize(CachePruner.parseSize(value));
+			} else if (arg.startsWith("--java_out=")) {
+				builder.javaOut(value);
+			} else if (arg.startsWith("--" + GrpcGenerator.GRPC_ID + "_out=")) {
+				builder.grpcOut(value);
+			} else if (arg.startsWith("--" + GrpcGenerator.RXGRPC_ID + "_out=")
+					|| arg.startsWith("--" + GrpcGenerator.RX3GRPC_ID + "_out=")) {
+				builder.rxgrpcOut(value);
+			} else if (arg.startsWith("--" + GrpcGenerator.GRPC_OSGI_ID + "_out=")) {
+				builder.grpcOsgiOut(value);
+			} else {
+				builder.protocArgument(arg);
+			}
+		}
+		if (systemCacheDirArg == null) {
+			systemCacheDirArg = System.getenv(ExeCache.SYSTEM_CACHE_DIR_ENV);
+		}
+		builder.systemCacheDirs(ExeCache.parseSystemCacheDirs(workingDirectory, systemCacheDirArg));
+		if (log.isDebugEnabled()) {
+			log.debug("OS=" + System.getProperty("os.name"));
+			if (!builder.osgi) {
+				log.debug("noosgi is set");
+			}
+			if (!builder.grpc) {
+				log.debug("nogrpc is set");
+			}
+			log.debug("java_out dir=" + builder.javaOut);
+		}
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		return "GenerationRequest [workingDirectory=" + workingDirectory + ", protocArguments=" + protocArguments
+				+ ", javaOut=" + javaOut + ", grpc=" + isGrpc() + ", osgi=" + isOsgi() + ", rxjava3=" + rxjava3
+				+ ", multiplex=" + multiplex + ", shards=" + shards + ", incremental=" + incremental + ", cacheDir="
+				+ cacheDir + "]";
+	}
+
+	/**
+	 * Builder for a {@link GenerationRequest}. A builder is not thread safe, the requests it builds are.
+	 */
+	public static final class Builder {
+		private File workingDirectory = IO.work;
+		private final List<String> protocArguments = new ArrayList<String>();
+		private String javaOut;
+		private String grpcOut;
+		private String rxgrpcOut;
+		private String grpcOsgiOut;
+		private boolean grpc = true;
+		private boolean osgi = true;
+		private boolean rxjava3;
+		// running the plugins concurrently only pays off with more than one processor
+		private boolean multiplex = Runtime.getRuntime().availableProcessors() > 1;
+		private int shards = 1;
+		private boolean incremental = true;
+		private boolean ignoreComments;
+		private boolean descriptorCache = true;
+		private boolean compressArchive;
+		private final List<String> includes = new ArrayList<String>();
+		private final List<String> excludes = new ArrayList<String>();
+		private File cacheDir = IO.getFile(GrpcGenerator.BND_CACHE_DIR);
+		private List<File> systemCacheDirs = ExeCache.parseSystemCacheDirs(IO.work,
+				System.getenv(ExeCache.SYSTEM_CACHE_DIR_ENV));
+		private File exeArtifact;
+		private long cacheSize = CachePruner.getDefaultMaxSize();
+		private File outputCache = getOutputCacheFromEnv();
+		private long outputCacheSize = OutputCache.getDefaultMaxSize();
+		private OutputStream out;
+		private OutputStream err;
+
+		Builder() {
+		}
+
+		public Builder workingDirectory(File workingDirectory) {
+			this.workingDirectory = workingDirectory.getAbsoluteFile();
+			return this;
+		}
+
+		/**
+		 * Add an argument for protoc, e.g. -I=proto or a proto file
+		 */
+		public Builder protocArgument(String argument) {
+			this.protocArguments.add(argument);
+			return this;
+		}
+
+		/**
+		 * Replace the arguments for protoc
+		 */
+		public Builder protocArguments(List<String> arguments) {
+			this.protocArguments.clear();
+			this.protocArguments.addAll(arguments);
+			return this;
+		}
+
+		public Builder javaOut(String javaOut) {
+			this.javaOut = javaOut;
+			return this;
+		}
+
+		public Builder grpcOut(String grpcOut) {
+			this.grpcOut = grpcOut;
+			return this;
+		}
+
+		public Builder rxgrpcOut(String rxgrpcOut) {
+			this.rxgrpcOut = rxgrpcOut;
+			return this;
+		}
+
+		public Builder grpcOsgiOut(String grpcOsgiOut) {
+			this.grpcOsgiOut = grpcOsgiOut;
+			return this;
+		}
+
+		public Builder grpc(boolean grpc) {
+			this.grpc = grpc;
+			return this;
+		}
+
+		public Builder osgi(boolean osgi) {
+			this.osgi = osgi;
+			return this;
+		}
+
+		public Builder rxjava3(boolean rxjava3) {
+			this.rxjava3 = rxjava3;
+			return this;
+		}
+
+		public Builder multiplex(boolean multiplex) {
+			this.multiplex = multiplex;
+			return this;
+		}
+
+		public Builder shards(int shards) {
+			if (shards < 1)
+				throw new IllegalArgumentException("Invalid shards=" + shards);
+			this.shards = shards;
+			return this;
+		}
+
+		public Builder incremental(boolean incremental) {
+			this.incremental = incremental;
+			return this;
+		}
+
+		public Builder ignoreComments(boolean ignoreComments) {
+			this.ignoreComments = ignoreComments;
+			return this;
+		}
+
+		public Builder descriptorCache(boolean descriptorCache) {
+			this.descriptorCache = descriptorCache;
+			return this;
+		}
+
+		public Builder compressArchive(boolean compressArchive) {
+			this.compressArchive = compressArchive;
+			return this;
+		}
+
+		/**
+		 * Add a pattern of fully qualified services, methods, messages or enums to generate, e.g. acme.Shop or
+		 * acme.Shop.Buy, where * matches any characters
+		 */
+		public Builder include(String pattern) {
+			if (!pattern.isEmpty()) {
+				this.includes.add(pattern);
+			}
+			return this;
+		}
+
+		/**
+		 * Add a pattern of fully qualified services, methods, messages or enums not to generate
+		 */
+		public Builder exclude(String pattern) {
+			if (!pattern.isEmpty()) {
+				this.excludes.add(pattern);
+			}
+			return this;
+		}
+
+		public Builder cacheDir(File cacheDir) {
+			this.cacheDir = cacheDir;
+			return this;
+		}
+
+		public Builder systemCacheDirs(List<File> systemCacheDirs) {
+			this.systemCacheDirs = new ArrayList<File>(systemCacheDirs);
+			return this;
+		}
+
+		public Builder exeArtifact(File exeArtifact) {
+			this.exeArtifact = exeArtifact;
+			return this;
+		}
+
+		public Builder cacheSize(long cacheSize) {
+			this.cacheSize = cacheSize;
+			return this;
+		}
+
+		public Builder outputCache(File outputCache) {
+			this.outputCache = outputCache;
+			return this;
+		}
+
+		public Builder outputCacheSize(long outputCacheSize) {
+			this.outputCacheSize = outputCacheSize;
+			return this;
+		}
+
+		private static File getOutputCacheFromEnv() {
+			String dir = System.getenv(OutputCache.OUTPUT_CACHE_ENV);
+			return (dir == null || dir.trim().isEmpty()) ? null : IO.getFile(dir.trim());
+		}
+
+		public Builder out(OutputStream out) {
+			this.out = out;
+			return this;
+		}
+
+		public Builder err(OutputStream err) {
+			this.err = err;
+			return this;
+		}
+
+		public GenerationRequest build() {
+			return new GenerationRequest(this);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * GenerationResult is the immutable outcome of running a {@link GenerationRequest}: the protoc exit code, the protoc
+ * error output as diagnostics, and the files written by the generation.
+ *
+ * @author slewis
+ *
+ */
+public final class GenerationResult {
+
+	private final int exitCode;
+	private final String diagnostics;
+	private final List<File> files;
+
+	GenerationResult(int exitCode, String diagnostics, List<File> files) {
+		this.exitCode = exitCode;
+		this.diagnostics = diagnostics;
+		this.files = Collections.unmodifiableList(new ArrayList<File>(files));
+	}
+
+	/**
+	 * @return the exit code of protoc, 0 on success
+	 */
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	public boolean isSuccess() {
+		return exitCode == 0;
+	}
+
+	/**
+	 * @return the error output of protoc and its plugins, empty if there was none
+	 */
+	public String getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * @return the files written in the output directories by the generation, sorted. Generated files that have the same
+	 *         content as the file in the output directory are not written.
+	 */
+	public List<File> getFiles() {
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return "GenerationResult [exitCode=" + exitCode + ", files=" + files.size() + ", diagnostics=" + diagnostics
+				+ "]";
+	}
+}
@@ -0,0 +1,561 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.libg.command.Command;
+
+/**
+ * GenerationState is the fingerprint of everything a generation depends on: the content of every input file and the
+ * files it imports, as resolved through the proto paths, the digests of protoc and the plugins, and the arguments
+ * and flags of the request. It is stored in the <b>&lt;cacheDir&gt;/state/&lt;sha256&gt;.state</b> file after a
+ * successful generation, where sha256 is the digest of the paths of the output directories, together with a manifest
+ * of the generated files and the input and plugin each came from. It is kept out of the output directories, as these
+ * are often source folders.
+ * <p>
+ * A generation with the same fingerprint is skipped as long as the generated files still exist. If only some inputs
+ * changed, only those are generated again, and the files they generated before but not anymore are deleted. The
+ * input and plugin of a generated file are taken from the header that protoc and the plugins write into it. A file
+ * without such a header is taken to come from the input of the run that wrote it, if only one input was generated.
+ * Otherwise its input is unknown, and the next generation is a full one that deletes it if it is not written again.
+ * <p>
+ * If comments are ignored, the digest of a proto file is the digest of its FileDescriptorProto as written by a
+ * protoc run that only parses, without source info, so that changes to comments and whitespace do not change it.
+ *
+ * @author slewis
+ *
+ */
+class GenerationState {
+
+	private static final Logger log = LoggerFactory.getLogger(GenerationState.class.getName());
+
+	static final String STATE_DIR = "state";
+	private static final String STATE_SUFFIX = ".state";
+	/**
+	 * The state file that was stored in the java output directory, or next to an output archive, before
+	 */
+	private static final String LEGACY_STATE_FILE = ".grpc-generator.state";
+	private static final String VERSION = "2";
+	/**
+	 * The input or plugin of a generated file that has no recognizable header
+	 */
+	static final String UNKNOWN = "-";
+	/**
+	 * How much of a generated file is read to find its input and plugin
+	 */
+	private static final int HEADER_SIZE = 2048;
+	private static final Pattern SOURCE = Pattern.compile("[Ss]ource: (\\S+?\\.proto)");
+	// FileDescriptorSet
+	private static final int SET_FILE = 1;
+	// FileDescriptorProto
+	private static final int FILE_NAME = 1;
+
+	/**
+	 * A generated file and where it came from
+	 */
+	static final class Output {
+		final File file;
+		final String input;
+		final String plugin;
+
+		Output(File file, String input, String plugin) {
+			this.file = file;
+			this.input = input;
+			this.plugin = plugin;
+		}
+	}
+
+	private final File file;
+	private final File legacyFile;
+	private final List<File> outputDirs;
+	private final boolean archive;
+	private final String options;
+	private final String fingerprint;
+	private final String cacheKey;
+	private final Map<String, String> inputs;
+	private final Map<String, String> arguments;
+	private final List<Output> outputs;
+
+	private GenerationState(File file, File legacyFile, List<File> outputDirs, String options, String fingerprint,
+			String cacheKey, Map<String, String> inputs, Map<String, String> arguments, List<Output> outputs) {
+		this.file = file;
+		this.legacyFile = legacyFile;
+		this.outputDirs = outputDirs;
+		boolean hasArchive = false;
+		for (File dir : outputDirs) {
+			hasArchive |= OutputStage.isArchive(dir);
+		}
+		this.archive = hasArchive;
+		this.options = options;
+		this.fingerprint = fingerprint;
+		this.cacheKey = cacheKey;
+		this.inputs = inputs;
+		this.arguments = arguments;
+		this.outputs = outputs;
+	}
+
+	/**
+	 * Compute the state of a request from the files on disk
+	 *
+	 * @return the state, or <code>null</code> if the request can't be fingerprinted, e.g. because it uses an argument
+	 *         file or a descriptor set, or has no output directory
+	 */
+	static GenerationState compute(GenerationRequest request, ProtocArguments protocArguments, Map<String, File> exes)
+			throws Exception {
+		List<File> outputDirs = request.getOutputDirs();
+		// the files in a descriptor set can't be fingerprinted
+		if (outputDirs.isEmpty() || !protocArguments.isSupported() || protocArguments.hasDescriptorSetIn())
+			return null;
+		ProtoGraph graph;
+		try {
+			graph = new ProtoGraph(protocArguments);
+		} catch (IllegalArgumentException e) {
+			// protoc will report it
+			return null;
+		}
+		Map<String, String> fileDigests = new HashMap<String, String>();
+		if (request.isIgnoreComments()) {
+			fileDigests.putAll(getDescriptorDigests(request, protocArguments, exes.get(GrpcGenerator.PROTOC_TARGET_NAME)));
+		}
+		Map<String, String> inputs = new LinkedHashMap<String, String>();
+		Map<String, String> arguments = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> input : graph.getInputs().entrySet()) {
+			String name = input.getValue();
+			MessageDigest md = ExeCache.sha256();
+			update(md, name, graph.getFile(name), fileDigests);
+			for (String imported : graph.getTransitiveImports(name)) {
+				update(md, imported, graph.getFile(imported), fileDigests);
+			}
+			inputs.put(name, ExeCache.toHex(md));
+			arguments.put(name, input.getKey());
+		}
+		// everything but the inputs, which are fingerprinted one by one
+		MessageDigest md = ExeCache.sha256();
+		update(md, "version", VERSION);
+		update(md, "cwd", request.getWorkingDirectory().getCanonicalPath());
+		for (String arg : protocArguments.getArguments(Collections.<String> emptyList())) {
+			update(md, "arg", arg);
+		}
+		update(md, "grpc", Boolean.toString(request.isGrpc()));
+		update(md, "osgi", Boolean.toString(request.isOsgi()));
+		update(md, "rxjava3", Boolean.toString(request.isRxjava3()));
+		update(md, "ignoreComments", Boolean.toString(request.isIgnoreComments()));
+		update(md, "include", String.join(",", request.getIncludes()));
+		update(md, "exclude", String.join(",", request.getExcludes()));
+		for (File dir : outputDirs) {
+			update(md, "out", dir.getCanonicalPath());
+		}
+		// the executables are cached in a directory named after their digest
+		for (Map.Entry<String, File> exe : new TreeMap<String, File>(exes).entrySet()) {
+			update(md, exe.getKey(), exe.getValue().getParentFile().getName());
+		}
+		String options = ExeCache.toHex(md);
+		String cacheKey = getCacheKey(request, protocArguments, outputDirs, exes, inputs);
+		md = ExeCache.sha256();
+		update(md, "options", options);
+		for (Map.Entry<String, String> input : inputs.entrySet()) {
+			update(md, input.getKey(), input.getValue());
+		}
+		List<File> absoluteDirs = new ArrayList<File>();
+		for (File dir : outputDirs) {
+			absoluteDirs.add(dir.toPath().toAbsolutePath().normalize().toFile());
+		}
+		// in the cacheDir, by the output directories the state is about
+		MessageDigest key = ExeCache.sha256();
+		for (File dir : outputDirs) {
+			update(key, "out", dir.getCanonicalPath());
+		}
+		File stateFile = new File(new File(request.getCacheDir(), STATE_DIR), ExeCache.toHex(key) + STATE_SUFFIX);
+		File first = outputDirs.get(0);
+		File legacyFile = OutputStage.isArchive(first)
+				? new File(first.getAbsoluteFile().getParentFile(), first.getName() + LEGACY_STATE_FILE)
+				: new File(first, LEGACY_STATE_FILE);
+		return new GenerationState(stateFile, legacyFile, absoluteDirs, options, ExeCache.toHex(md), cacheKey, inputs,
+				arguments, Collections.<Output> emptyList());
+	}
+
+	/**
+	 * The key of the generated files in an {@link OutputCache}. Unlike the fingerprint it does not depend on where the
+	 * working, proto path and output directories are, only on the proto names and content, the options, the
+	 * executables, and which outputs share a directory.
+	 */
+	private static String getCacheKey(GenerationRequest request, ProtocArguments protocArguments,
+			List<File> outputDirs, Map<String, File> exes, Map<String, String> inputs) {
+		MessageDigest md = ExeCache.sha256();
+		update(md, "version", VERSION);
+		for (String option : protocArguments.getOptions()) {
+			update(md, "option", option);
+		}
+		for (Map.Entry<String, List<String>> plugin : new TreeMap<String, List<String>>(
+				protocArguments.getPluginOptions()).entrySet()) {
+			for (String option : plugin.getValue()) {
+				update(md, plugin.getKey(), option);
+			}
+		}
+		update(md, "grpc", Boolean.toString(request.isGrpc()));
+		update(md, "osgi", Boolean.toString(request.isOsgi()));
+		update(md, "rxjava3", Boolean.toString(request.isRxjava3()));
+		update(md, "ignoreComments", Boolean.toString(request.isIgnoreComments()));
+		update(md, "include", String.join(",", request.getIncludes()));
+		update(md, "exclude", String.join(",", request.getExcludes()));
+		updateOut(md, "java", request.getJavaOut(), request, outputDirs);
+		updateOut(md, GrpcGenerator.GRPC_ID, request.getGrpcOut(), request, outputDirs);
+		updateOut(md, GrpcGenerator.RXGRPC_ID, request.getRxgrpcOut(), request, outputDirs);
+		updateOut(md, GrpcGenerator.GRPC_OSGI_ID, request.getGrpcOsgiOut(), request, outputDirs);
+		for (Map.Entry<String, File> exe : new TreeMap<String, File>(exes).entrySet()) {
+			update(md, exe.getKey(), exe.getValue().getParentFile().getName());
+		}
+		for (Map.Entry<String, String> input : new TreeMap<String, String>(inputs).entrySet()) {
+			update(md, input.getKey(), input.getValue());
+		}
+		return ExeCache.toHex(md);
+	}
+
+	private static void updateOut(MessageDigest md, String id, String out, GenerationRequest request,
+			List<File> outputDirs) {
+		if (out == null)
+			return;
+		String[] split = ProtocArguments.splitOut(out);
+		File dir = IO.getFile(request.getWorkingDirectory(), split[1]);
+		update(md, id, split[0] + ":" + outputDirs.indexOf(dir) + ":" + OutputStage.isArchive(dir));
+	}
+
+	/**
+	 * Let protoc parse the inputs and their imports, and write their descriptors without source info
+	 *
+	 * @return the digest of the descriptor of every proto file by name, empty if protoc failed, in which case the
+	 *         content of the files is used and the generation reports the error
+	 */
+	private static Map<String, String> getDescriptorDigests(GenerationRequest request,
+			ProtocArguments protocArguments, File protoc) throws Exception {
+		Map<String, String> digests = new HashMap<String, String>();
+		Path descriptorSet = Files.createTempFile("grpc-generator", ".pb");
+		try {
+			Command cmd = new Command();
+			cmd.setCwd(request.getWorkingDirectory());
+			cmd.add(protoc.getAbsolutePath());
+			cmd.add("--descriptor_set_out=" + descriptorSet.toFile().getAbsolutePath());
+			cmd.add("--include_imports");
+			for (String protoPath : protocArguments.getProtoPaths()) {
+				cmd.add("--proto_path=" + protoPath);
+			}
+			cmd.addAll(protocArguments.getParseOptions());
+			cmd.addAll(protocArguments.getInputs());
+			StringBuilder out = new StringBuilder();
+			StringBuilder err = new StringBuilder();
+			int execute = cmd.execute((InputStream) null, out, err);
+			if (execute != 0) {
+				if (log.isDebugEnabled()) {
+					log.debug("could not parse the proto files, exitCode=" + execute + ": " + err);
+				}
+				return digests;
+			}
+			ProtoWire.Reader set = new ProtoWire.Reader(IO.read(descriptorSet.toFile()));
+			while (set.next()) {
+				if (set.field == SET_FILE) {
+					byte[] descriptor = set.bytes();
+					ProtoWire.Reader file = new ProtoWire.Reader(descriptor);
+					while (file.next()) {
+						if (file.field == FILE_NAME) {
+							MessageDigest md = ExeCache.sha256();
+							md.update(descriptor);
+							digests.put(file.string(), "descriptor:" + ExeCache.toHex(md));
+							break;
+						}
+					}
+				}
+			}
+			return digests;
+		} finally {
+			Files.deleteIfExists(descriptorSet);
+		}
+	}
+
+	private static void update(MessageDigest md, String name, File file, Map<String, String> fileDigests)
+			throws IOException {
+		String digest = fileDigests.get(name);
+		if (digest == null) {
+			// a file that can't be resolved may be built into protoc, which is part of the fingerprint
+			digest = file == null ? UNKNOWN : ExeCache.toHex(IO.copy(file, ExeCache.sha256()));
+			fileDigests.put(name, digest);
+		}
+		update(md, name, digest);
+	}
+
+	private static void update(MessageDigest md, String key, String value) {
+		md.update((key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Read the state that was stored by the previous generation
+	 *
+	 * @return the state, or <code>null</code> if there is none or it can't be read
+	 */
+	GenerationState readPrevious() {
+		if (!file.isFile())
+			return null;
+		try {
+			String previousOptions = null;
+			String previousFingerprint = null;
+			Map<String, String> previousInputs = new LinkedHashMap<String, String>();
+			List<Output> previousOutputs = new ArrayList<Output>();
+			for (String line : IO.collect(file).split("\n")) {
+				if (line.startsWith("options=")) {
+					previousOptions = line.substring("options=".length());
+				} else if (line.startsWith("fingerprint=")) {
+					previousFingerprint = line.substring("fingerprint=".length());
+				} else if (line.startsWith("input=")) {
+					String[] parts = line.substring("input=".length()).split(" ", 2);
+					if (parts.length == 2) {
+						previousInputs.put(parts[1], parts[0]);
+					}
+				} else if (line.startsWith("output=")) {
+					String[] parts = line.substring("output=".length()).split(" ", 3);
+					if (parts.length == 3) {
+						previousOutputs.add(new Output(new File(parts[2]), parts[1], parts[0]));
+					}
+				}
+			}
+			if (previousOptions == null || previousFingerprint == null)
+				return null;
+			return new GenerationState(file, legacyFile, outputDirs, previousOptions, previousFingerprint, null,
+					previousInputs, Collections.<String, String> emptyMap(), previousOutputs);
+		} catch (IOException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("could not read state file=" + file + ": " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the previous state has the same fingerprint and all its generated files still exist
+	 */
+	boolean isUpToDate(GenerationState previous) {
+		if (previous == null || !fingerprint.equals(previous.fingerprint))
+			return false;
+		for (Output output : previous.outputs) {
+			if (!output.file.isFile()) {
+				if (log.isDebugEnabled()) {
+					log.debug("generated file=" + output.file + " is missing");
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if only the inputs that changed since the previous state have to be generated, which is never the
+	 *         case for an output archive as it is written as a whole, or if a generated file has an unknown input
+	 */
+	boolean isIncremental(GenerationState previous) {
+		return previous != null && !archive && options.equals(previous.options) && !previous.hasUnknownInput();
+	}
+
+	private boolean hasUnknownInput() {
+		for (Output output : outputs) {
+			if (UNKNOWN.equals(output.input))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The inputs to generate: those that are new, that changed or that depend on a changed file, and those of which
+	 * a generated file is missing. All inputs if the arguments or executables changed.
+	 *
+	 * @return the input arguments, in the order of the arguments
+	 */
+	List<String> getChangedInputs(GenerationState previous) {
+		Set<String> missing = new HashSet<String>();
+		if (isIncremental(previous)) {
+			for (Output output : previous.outputs) {
+				if (!output.file.isFile()) {
+					missing.add(output.input);
+				}
+			}
+		}
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, String> input : inputs.entrySet()) {
+			String name = input.getKey();
+			if (!isIncremental(previous) || !input.getValue().equals(previous.inputs.get(name))
+					|| missing.contains(name)) {
+				changed.add(arguments.get(name));
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Delete the files of the previous generation that were not generated again. The files of inputs that were not
+	 * generated again are kept, unless the input is gone.
+	 *
+	 * @param previous the previous state, may be <code>null</code>
+	 * @param generated the inputs that were generated
+	 * @param written the files that were written
+	 * @return the deleted files
+	 */
+	List<File> deleteStale(GenerationState previous, Collection<String> generated, Collection<File> written) {
+		List<File> deleted = new ArrayList<File>();
+		if (previous == null)
+			return deleted;
+		boolean incremental = isIncremental(previous);
+		for (Output output : previous.outputs) {
+			boolean regenerated = !incremental || generated.contains(arguments.get(output.input));
+			boolean removed = !inputs.containsKey(output.input);
+			if ((regenerated || removed) && !written.contains(output.file) && output.file.isFile()) {
+				if (log.isDebugEnabled()) {
+					log.debug("deleting stale file=" + output.file + " of input=" + output.input);
+				}
+				IO.delete(output.file);
+				deleted.add(output.file);
+				deleteEmptyParents(output.file);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Delete the package directories that became empty, but not the output directory
+	 */
+	private void deleteEmptyParents(File deleted) {
+		File dir = deleted.toPath().toAbsolutePath().normalize().toFile().getParentFile();
+		while (dir != null && !outputDirs.contains(dir)) {
+			String[] children = dir.list();
+			if (children == null || children.length > 0 || !dir.delete())
+				return;
+			dir = dir.getParentFile();
+		}
+	}
+
+	/**
+	 * Store the state, with the files that were written and the files of the previous generation that are still
+	 * valid
+	 *
+	 * @param previous the previous state, may be <code>null</code>
+	 * @param generated the inputs that were generated
+	 * @param written the files that were written
+	 * @return all generated files of the state
+	 */
+	List<File> write(GenerationState previous, Collection<String> generated, Collection<File> written)
+			throws IOException {
+		Map<File, Output> manifest = new TreeMap<File, Output>();
+		if (isIncremental(previous)) {
+			for (Output output : previous.outputs) {
+				if (output.file.isFile() && inputs.containsKey(output.input)) {
+					manifest.put(output.file, output);
+				}
+			}
+		}
+		// a file without a header can only be attributed to the input of a run with one input
+		String runInput = UNKNOWN;
+		if (generated.size() == 1) {
+			String argument = generated.iterator().next();
+			for (Map.Entry<String, String> input : arguments.entrySet()) {
+				if (input.getValue().equals(argument)) {
+					runInput = input.getKey();
+				}
+			}
+		}
+		for (File output : written) {
+			manifest.put(output, getOrigin(output, runInput));
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("options=").append(options).append('\n');
+		sb.append("fingerprint=").append(fingerprint).append('\n');
+		for (Map.Entry<String, String> input : inputs.entrySet()) {
+			sb.append("input=").append(input.getValue()).append(' ').append(input.getKey()).append('\n');
+		}
+		for (Output output : manifest.values()) {
+			sb.append("output=").append(output.plugin).append(' ').append(output.input).append(' ');
+			sb.append(output.file.getAbsolutePath()).append('\n');
+		}
+		IO.mkdirs(file.getParentFile());
+		ExeCache.writeAtomically(sb.toString().getBytes(StandardCharsets.UTF_8), file);
+		if (legacyFile.isFile()) {
+			IO.delete(legacyFile);
+		}
+		return new ArrayList<File>(manifest.keySet());
+	}
+
+	/**
+	 * Find the input and the plugin of a generated file from the header protoc and the plugins write
+	 *
+	 * @param runInput the input of the file if it has no header
+	 */
+	private Output getOrigin(File output, String runInput) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		int length = 0;
+		try (InputStream in = IO.stream(output)) {
+			int n;
+			while (length < header.length && (n = in.read(header, length, header.length - length)) > 0) {
+				length += n;
+			}
+		}
+		String text = new String(header, 0, length, StandardCharsets.UTF_8);
+		String input = runInput;
+		Matcher m = SOURCE.matcher(text);
+		if (m.find() && inputs.containsKey(m.group(1))) {
+			input = m.group(1);
+		}
+		String plugin = UNKNOWN;
+		if (text.contains("Generated by the protocol buffer compiler")) {
+			plugin = "java";
+		} else if (text.contains("by gRPC proto compiler")) {
+			plugin = GrpcGenerator.GRPC_ID;
+		} else if (text.contains("by RxGrpc generator")) {
+			plugin = text.contains("rxjava3") ? GrpcGenerator.RX3GRPC_ID : GrpcGenerator.RXGRPC_ID;
+		} else if (text.contains("by grpc-osgi-generator")) {
+			plugin = GrpcGenerator.GRPC_OSGI_ID;
+		}
+		return new Output(output, input, plugin);
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return the key of the generated files in an {@link OutputCache}
+	 */
+	String getCacheKey() {
+		return cacheKey;
+	}
+
+	/**
+	 * @return the generated files of the state that was read, with their input and plugin
+	 */
+	List<Output> getOutputs() {
+		return outputs;
+	}
+}
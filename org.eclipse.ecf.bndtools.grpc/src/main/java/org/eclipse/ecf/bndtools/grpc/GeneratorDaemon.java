@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+
+/**
+ * GeneratorDaemon is a long lived generator process that runs generations for thin {@link GrpcGenerator} clients, so
+ * that the JVM start up, class loading and cache verification are paid once rather than on every generation. The
+ * daemon listens on a loopback port that it publishes, with a random token, in a file in the cacheDir. Clients send
+ * the token, their working directory and arguments, and get the protoc output and exit code back. A client starts
+ * the daemon if none is running, and the daemon exits when it had no requests for its idle timeout.
+ * <p>
+ * There is one daemon per cacheDir, java, class path and GRPC_GENERATOR_* environment, so a client never talks to a
+ * daemon of another version or configuration.
+ * </p>
+ *
+ * @author slewis
+ *
+ */
+class GeneratorDaemon {
+
+	private static final Logger log = LoggerFactory.getLogger(GeneratorDaemon.class.getName());
+
+	static final String DAEMON_ARG = "daemon";
+	static final String DAEMON_ENV = "GRPC_GENERATOR_DAEMON";
+	static final String DAEMON_FILE_PREFIX = "grpc-generator-daemon-";
+	static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+	private static final String ENV_PREFIX = "GRPC_GENERATOR_";
+	private static final String PORT_SUFFIX = ".port";
+	private static final String LOG_SUFFIX = ".log";
+	private static final int PROTOCOL_VERSION = 1;
+	private static final byte EXIT_FRAME = 0;
+	private static final byte OUT_FRAME = 1;
+	private static final byte ERR_FRAME = 2;
+	private static final long ACCEPT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	private static final int REQUEST_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+	private static final long SPAWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+	private static final long SPAWN_POLL = 50L;
+
+	private final File cacheDir;
+	private final String id;
+
+	GeneratorDaemon(File cacheDir) {
+		this.cacheDir = cacheDir;
+		this.id = getId(cacheDir);
+	}
+
+	private File getFile(String suffix) {
+		return new File(cacheDir, DAEMON_FILE_PREFIX + id + suffix);
+	}
+
+	/**
+	 * The identity of this daemon, so that only clients with the same java, class path, cacheDir and configuring
+	 * environment use it
+	 */
+	private static String getId(File cacheDir) {
+		MessageDigest md = ExeCache.sha256();
+		List<String> parts = new ArrayList<String>();
+		parts.add(System.getProperty("java.home"));
+		parts.add(cacheDir.getAbsolutePath());
+		for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+			File f = new File(entry);
+			parts.add(f.getAbsolutePath() + "@" + f.lastModified() + "/" + f.length());
+		}
+		for (Map.Entry<String, String> env : new TreeMap<String, String>(System.getenv()).entrySet()) {
+			if (env.getKey().startsWith(ENV_PREFIX) && !env.getKey().equals(DAEMON_ENV)) {
+				parts.add(env.getKey() + "=" + env.getValue());
+			}
+		}
+		for (String part : parts) {
+			md.update(part.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+		}
+		return ExeCache.toHex(md).substring(0, 16);
+	}
+
+	/**
+	 * Forward a generation to the daemon, if the arguments or environment ask for it
+	 *
+	 * @return the exit code, or <code>null</code> if the daemon was not requested or could not be started, in which
+	 *         case the caller should run the generation itself
+	 */
+	static Integer forward(File cwd, String[] args, OutputStream out, OutputStream err) throws IOException {
+		String daemonArg = null;
+		String cacheDirArg = GrpcGenerator.BND_CACHE_DIR;
+		for (String arg : args) {
+			if (arg.equals(DAEMON_ARG) || arg.startsWith(DAEMON_ARG + "=")) {
+				daemonArg = arg;
+			} else if (arg.startsWith("cacheDir=")) {
+				cacheDirArg = arg.split("=")[1];
+			}
+		}
+		if (daemonArg == null && !Boolean.parseBoolean(System.getenv(DAEMON_ENV)))
+			return null;
+		long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		if (daemonArg != null && daemonArg.startsWith(DAEMON_ARG + "=")) {
+			idleTimeout = TimeUnit.MINUTES.toMillis(Long.parseLong(daemonArg.split("=")[1]));
+		}
+		GeneratorDaemon daemon = new GeneratorDaemon(IO.getFile(cwd, cacheDirArg));
+		Socket socket = daemon.connect();
+		if (socket == null) {
+			socket = daemon.spawn(idleTimeout);
+			if (socket == null) {
+				log.warn("could not start the generator daemon, see " + daemon.getFile(LOG_SUFFIX));
+				return null;
+			}
+		}
+		try (Socket s = socket) {
+			return daemon.request(s, cwd, args, out, err);
+		}
+	}
+
+	/**
+	 * @return a connection to the running daemon, or <code>null</code> if there is none
+	 */
+	private Socket connect() {
+		File portFile = getFile(PORT_SUFFIX);
+		if (!portFile.isFile())
+			return null;
+		try {
+			String[] published = IO.collect(portFile).trim().split(" ");
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(published[0]));
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				out.writeInt(PROTOCOL_VERSION);
+				out.writeUTF(published[1]);
+				out.flush();
+				return socket;
+			} catch (IOException e) {
+				IO.close(socket);
+				throw e;
+			}
+		} catch (ConnectException e) {
+			// a daemon that is gone, or just going
+			return null;
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) {
+				log.debug("could not connect to the daemon with " + portFile + ": " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Start a daemon process and wait until it accepts connections
+	 */
+	private Socket spawn(long idleTimeout) throws IOException {
+		IO.mkdirs(cacheDir);
+		File bin = new File(System.getProperty("java.home"), "bin");
+		String java = new File(bin, ExeCache.isWindows() ? "java.exe" : "java").getAbsolutePath();
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				GrpcGenerator.class.getName(), "serve", "cacheDir=" + cacheDir.getAbsolutePath(),
+				"idleTimeout=" + TimeUnit.MILLISECONDS.toMinutes(idleTimeout));
+		// never share the streams of the client, a build tool reading them would wait for the daemon to exit
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(ProcessBuilder.Redirect.appendTo(getFile(LOG_SUFFIX)));
+		if (log.isDebugEnabled()) {
+			log.debug("starting generator daemon " + pb.command());
+		}
+		Process process = pb.start();
+		IO.close(process.getOutputStream());
+		long deadline = System.currentTimeMillis() + SPAWN_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			Socket socket = connect();
+			if (socket != null)
+				return socket;
+			// exiting normally means another client started a daemon just now, so keep waiting for that one
+			if (!process.isAlive() && process.exitValue() != 0)
+				return null;
+			try {
+				Thread.sleep(SPAWN_POLL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private int request(Socket socket, File cwd, String[] args, OutputStream out, OutputStream err)
+			throws IOException {
+		DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		request.writeUTF(cwd.getAbsolutePath());
+		request.writeInt(args.length);
+		for (String arg : args) {
+			request.writeUTF(arg);
+		}
+		request.flush();
+		DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		while (true) {
+			byte type = response.readByte();
+			if (type == EXIT_FRAME)
+				return response.readInt();
+			byte[] data = new byte[response.readInt()];
+			response.readFully(data);
+			OutputStream target = type == ERR_FRAME ? err : out;
+			target.write(data);
+			target.flush();
+		}
+	}
+
+	/**
+	 * Run the daemon for the cacheDir argument until it is idle for the idleTimeout argument, in minutes. Returns
+	 * right away if the daemon is already running.
+	 */
+	static void serve(String[] args) throws Exception {
+		String cacheDirArg = GrpcGenerator.BND_CACHE_DIR;
+		long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		for (String arg : args) {
+			if (arg.startsWith("cacheDir=")) {
+				cacheDirArg = arg.split("=")[1];
+			} else if (arg.startsWith("idleTimeout=")) {
+				idleTimeout = TimeUnit.MINUTES.toMillis(Long.parseLong(arg.split("=")[1]));
+			} else {
+				throw new IllegalArgumentException("Unknown daemon argument " + arg);
+			}
+		}
+		new GeneratorDaemon(IO.getFile(cacheDirArg)).serve(idleTimeout);
+	}
+
+	private void serve(long idleTimeout) throws Exception {
+		IO.mkdirs(cacheDir);
+		File portFile = getFile(PORT_SUFFIX);
+		try (FileChannel lockChannel = FileChannel.open(getFile(ExeCache.LOCK_SUFFIX).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = lockChannel.tryLock();
+			if (lock == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("generator daemon already running for cacheDir=" + cacheDir.getAbsolutePath());
+				}
+				return;
+			}
+			byte[] secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+			String token = Hex.toHexString(secret);
+			AtomicInteger active = new AtomicInteger();
+			AtomicLong lastActive = new AtomicLong(System.currentTimeMillis());
+			ExecutorService executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "GrpcGenerator-daemon");
+				t.setDaemon(true);
+				return t;
+			});
+			try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+				publish(server.getLocalPort() + " " + token, portFile);
+				log.info("generator daemon listening on port=" + server.getLocalPort() + " for cacheDir="
+						+ cacheDir.getAbsolutePath());
+				server.setSoTimeout((int) Math.max(SPAWN_POLL, Math.min(idleTimeout, ACCEPT_TIMEOUT)));
+				while (true) {
+					try {
+						Socket socket = server.accept();
+						active.incrementAndGet();
+						executor.execute(() -> {
+							try {
+								handle(socket, token);
+							} finally {
+								lastActive.set(System.currentTimeMillis());
+								active.decrementAndGet();
+							}
+						});
+					} catch (SocketTimeoutException e) {
+						if (active.get() == 0 && System.currentTimeMillis() - lastActive.get() > idleTimeout)
+							break;
+					}
+				}
+			} finally {
+				IO.delete(portFile);
+				executor.shutdown();
+			}
+			log.info("generator daemon for cacheDir=" + cacheDir.getAbsolutePath() + " exiting after being idle");
+		}
+	}
+
+	/**
+	 * Write the port file so that only this user can read the token
+	 */
+	private static void publish(String content, File portFile) throws IOException {
+		// temp files are only readable by the owner
+		Path tmp = Files.createTempFile(portFile.getParentFile().toPath(), portFile.getName(), ExeCache.TMP_SUFFIX);
+		try {
+			IO.store(content, tmp.toFile());
+			ExeCache.moveAtomically(tmp, portFile.toPath());
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private void handle(Socket socket, String token) {
+		try (Socket s = socket) {
+			s.setSoTimeout(REQUEST_TIMEOUT);
+			DataInputStream request = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			if (request.readInt() != PROTOCOL_VERSION || !MessageDigest.isEqual(
+					token.getBytes(StandardCharsets.UTF_8), request.readUTF().getBytes(StandardCharsets.UTF_8))) {
+				log.warn("rejected generator daemon request from " + s.getRemoteSocketAddress());
+				return;
+			}
+			File cwd = new File(request.readUTF());
+			String[] args = new String[request.readInt()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = request.readUTF();
+			}
+			s.setSoTimeout(0);
+			if (log.isDebugEnabled()) {
+				log.debug("generating in cwd=" + cwd + " args=" + Arrays.toString(args));
+			}
+			DataOutputStream response = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			FrameOutputStream out = new FrameOutputStream(response, OUT_FRAME);
+			FrameOutputStream err = new FrameOutputStream(response, ERR_FRAME);
+			int exit;
+			try {
+				GenerationRequest generation = GenerationRequest.parse(cwd, args).out(out).err(err).build();
+				exit = new GrpcGenerator().generate(generation).getExitCode();
+			} catch (Exception e) {
+				PrintWriter pw = new PrintWriter(new OutputStreamWriter(err, StandardCharsets.UTF_8));
+				e.printStackTrace(pw);
+				pw.flush();
+				exit = 1;
+			}
+			out.flush();
+			err.flush();
+			synchronized (response) {
+				response.writeByte(EXIT_FRAME);
+				response.writeInt(exit);
+				response.flush();
+			}
+		} catch (Exception e) {
+			log.warn("generator daemon request failed", e);
+		}
+	}
+
+	/**
+	 * Writes the bytes written to it as frames of one type, a frame is sent on every flush
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private static final int FRAME_SIZE = 8192;
+		private final DataOutputStream out;
+		private final byte type;
+		private final byte[] buffer = new byte[FRAME_SIZE];
+		private int count;
+
+		FrameOutputStream(DataOutputStream out, byte type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			buffer[count++] = (byte) b;
+			if (count == FRAME_SIZE) {
+				flush();
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (count == 0)
+				return;
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(count);
+				out.write(buffer, 0, count);
+				out.flush();
+			}
+			count = 0;
+		}
+	}
+}
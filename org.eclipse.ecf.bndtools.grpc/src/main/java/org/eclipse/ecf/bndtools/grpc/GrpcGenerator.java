@@ -8,24 +8,29 @@
  ******************************************************************************/
 package org.eclipse.ecf.bndtools.grpc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import aQute.lib.io.IO;
-import aQute.lib.strings.Strings;
+import aQute.lib.json.Encoder;
+import aQute.lib.json.JSONCodec;
 import aQute.libg.command.Command;
 
 /**
@@ -41,20 +46,104 @@ import aQute.libg.command.Command;
  * <li><b>noosgi</b> - If provided, the reactivex-grpc and grpc-osgi-generator classes will <b>not</b> be generated. Note
  * that if <b>nogrpc</b> is given then noosgi is assumed to also be set</li>
  * <li><b>cacheDir=&lt;directory&gt;</b> - The protoc, grpc-java, reactivex-grpc, and grpc-osgi-generator binaries are copied
- * from inside this bundle to this directory.  If not provided, defaults to <b>~/.bnd/cache</b> directory.
+ * from inside this bundle to this directory, in a sub directory named by the sha256 digest of each binary.  If not provided,
+ * defaults to <b>~/.bnd/cache</b> directory.
+ * <li><b>systemCacheDir=&lt;directory&gt;</b> - A read only directory, pre populated with the same layout as the cacheDir,
+ * that is searched before the cacheDir.  Binaries are only copied to the cacheDir when not found here.  Several
+ * directories may be given separated by the path separator.  If not provided, defaults to the GRPC_GENERATOR_SYSTEM_CACHE
+ * environment variable.
+ * <li><b>exeArtifact=&lt;jar&gt;</b> - The platform specific artifact (e.g. org.eclipse.ecf.bndtools.grpc-1.3.0-linux-x86_64.jar)
+ * to take the binaries from when this bundle is built without them.  If not provided, the artifact is looked for next to
+ * this bundle and in the local Maven repository.  It is only downloaded if the GRPC_GENERATOR_MAVEN_REPOSITORY environment
+ * variable names a remote repository, e.g. https://repo.maven.apache.org/maven2/.
+ * <li><b>cacheSize=&lt;size&gt;</b> - The maximum size of the binaries in the cacheDir, e.g. 512m or 2g.  The least recently
+ * used binaries are removed from the cache while protoc runs, at most once a day.  If not provided, defaults to the
+ * GRPC_GENERATOR_CACHE_SIZE environment variable or to 256m.
+ * <li><b>nomux</b> - If given, protoc runs the grpc-java, reactivex-grpc and grpc-osgi-generator plugins one after the other.
+ * By default they are run concurrently by this generator on a descriptor set written by protoc, when there is more than one
+ * processor.  <b>mux</b> runs them concurrently also on a single processor.
+ * <li><b>noincremental</b> - If given, protoc is always run for all input files. By default the generation is skipped
+ * if the input files, the files they import, the executables and the arguments have the same fingerprint as in the last
+ * successful generation, which is stored in the <b>state</b> directory of the cacheDir, and the files generated then
+ * still exist. If only some input files or the files they import changed, only those input files
+ * are generated, and the files they no longer generate are deleted.
+ * <li><b>outputCache=&lt;directory&gt;</b> - If given, the generated files are cached in this directory, which may be
+ * shared by several builds and machines.  The key is a digest of the names and content of the proto files and their
+ * imports, the executables, and the arguments, and a generation with a cached key copies the files from the cache
+ * without running protoc.  If not provided, defaults to the GRPC_GENERATOR_OUTPUT_CACHE environment variable, and
+ * without either no generated files are cached.
+ * <li><b>outputCacheSize=&lt;size&gt;</b> - The maximum size of the outputCache, e.g. 512m or 2g.  The least recently
+ * used entries are removed while protoc runs, at most once a day.  If not provided, defaults to the
+ * GRPC_GENERATOR_OUTPUT_CACHE_SIZE environment variable or to 1g.
+ * <li><b>compressArchive</b> - If given, the files in an output archive are compressed.  By default they are stored, which
+ * is faster to write and to read.
+ * <li><b>ignoreComments</b> - If given, the fingerprint of a proto file is the digest of its descriptor as parsed by
+ * protoc, which has no comments or layout, instead of the digest of the file.  Edits that only change comments or
+ * whitespace then do not run protoc and the plugins, at the price of javadoc in the generated files that is not
+ * updated until the next change that does.
+ * <li><b>nodescriptorCache</b> - If given, protoc parses all imported proto files on every generation.  By default the
+ * files that the inputs import from proto paths that contain none of the inputs, e.g. shared schema trees, are parsed
+ * once into a descriptor set in the <b>descriptors</b> directory of the cacheDir, keyed by their content, and protoc
+ * reads them from that set with --descriptor_set_in.
+ * <li><b>include=&lt;patterns&gt;</b> - If given, only the services, methods, messages and enums of the input files
+ * whose fully qualified names match one of the comma separated patterns are generated, e.g.
+ * <b>include=acme.shop.Shop,acme.billing.*</b>, where * matches any characters.  The messages and enums they use are
+ * generated as well, so that the generated code compiles.  A service is generated with its matching methods only.
+ * <li><b>exclude=&lt;patterns&gt;</b> - If given, the services, methods, messages and enums that match one of the comma
+ * separated patterns are not generated, unless a generated service or type uses them.  With include or exclude the
+ * inputs are not sharded, and are all generated when one of them changes.
+ * <li><b>shards=&lt;n&gt;</b> - If given, the input files are split over up to n protoc processes that run concurrently, by
+ * the imports between them and their size and number of services.  <b>shards</b> without a number uses the number of
+ * processors.  All shards write to the same output directories.
  * <li><b>rxjava3</b> - If given, then the reactivex-grpc, and grpc-osgi generated classes use the reactivex version 3
  * api.  If not given, then the reactivx version 2 api is used.
- * <li><b>--java_out=&lt;directory&gt;</b> - This is the default directory for protoc generated java code.  It must be set</li>
+ * <li><b>--java_out=&lt;directory&gt;</b> - This is the default directory for protoc generated java code.  It must be set.
+ * If it is a file ending in .srcjar, .jar or .zip, the files of protoc and all plugins that use it are written to that
+ * archive, sorted and with fixed timestamps so that the archive only changes when the generated code does.</li>
  * <li><b>--grpc-java_out=&lt;directory&gt;</b> - If set, this is the directory used for grpc-java generated code.  If not set,
  * defaults to value of --java_out</li>
- * <li><b>--rxgrpc_out=&lt;directory&gt;</b> - If set, this is the directory used for reactivex-grpc generated code.  If not set,
- * defaults to value of --java_out</li>
- * <li><b>--grpc-osgi-generated_out=&lt;directory&gt;</b> - If set, this is the directory used for grpc-osgi generated code.  If not set,
+ * <li><b>--rxgrpc_out=&lt;directory&gt;</b> (or <b>--rx3grpc_out</b>) - If set, this is the directory used for reactivex-grpc
+ * generated code.  If not set, defaults to value of --java_out</li>
+ * <li><b>--grpc-osgi-generator_out=&lt;directory&gt;</b> - If set, this is the directory used for grpc-osgi generated code.  If not set,
  * defaults to value of --java_out</li></ul>
  * <p>
- * Note that the --java_out, --grpc-java_out, --rxjava_out, and --grpc-osgi-generated_out arguments are passed to
- * the execution of protoc, while nogrpc, noosgi, cacheDir, and rxjava3 arguments are only for GrpcGenerator operation.
+ * Note that the --java_out, --grpc-java_out, --rxgrpc_out, and --grpc-osgi-generator_out arguments are passed to
+ * the execution of protoc, while nogrpc, noosgi, cacheDir, systemCacheDir, exeArtifact, cacheSize, outputCache,
+ * outputCacheSize, daemon, mux, nomux, noincremental, ignoreComments, nodescriptorCache, include, exclude,
+ * compressArchive, shards, and rxjava3 arguments are only for GrpcGenerator operation.
+ * </p>
+ * <p>
+ * If the first argument is <b>prune</b>, the cacheDir is pruned to the cacheSize right away and protoc is not run, e.g.
+ * <b>GrpcGenerator prune cacheSize=100m</b>
+ * </p>
+ * <p>
+ * The following commands prepare a cacheDir without running protoc, e.g. when baking a CI image:
  * </p>
+ * <ul><li><b>prefetch</b> - Copies and verifies the binaries for this platform, for both reactivex versions</li>
+ * <li><b>export &lt;archive&gt;</b> - Writes all binaries in the cacheDir to a zip archive</li>
+ * <li><b>import &lt;archive&gt;</b> - Verifies and adds the binaries in an exported archive to the cacheDir</li></ul>
+ * <pre> GrpcGenerator prefetch cacheDir=/opt/bnd/grpc-cache
+ * GrpcGenerator export cacheDir=/opt/bnd/grpc-cache grpc-cache.zip</pre>
+ * <p>
+ * If the first argument is <b>batch</b>, the generations listed in a manifest file are run in this JVM, concurrently
+ * on up to <b>threads=&lt;n&gt;</b> threads, by default the number of processors, e.g.
+ * <b>GrpcGenerator batch threads=4 cacheDir=/opt/bnd/grpc-cache generate.manifest</b>.  Every line of the manifest is
+ * the working directory of a generation, relative to the manifest, followed by its arguments, which come after the
+ * arguments given to batch.  A JSON summary of the results is written to the standard output, and the exit code is
+ * 1 if any generation failed.  See {@link BatchRunner} for the manifest format.
+ * </p>
+ * <p>
+ * If the <b>daemon</b> argument is given, or the GRPC_GENERATOR_DAEMON environment variable is true, the
+ * generation is forwarded to a long lived generator process for the cacheDir, which is started on first use and
+ * exits after 30 minutes without requests (<b>daemon=&lt;minutes&gt;</b> sets another idle timeout).  This saves the
+ * start up of a JVM for every generation.  The daemon uses the environment of the process that started it.
+ * </p>
+ * <p>
+ * Build tools can run generations in their own JVM, also concurrently, with {@link #generate(GenerationRequest)}.
+ * bnd can do so with the <b>grpc</b> -generate plugin, see {@link GrpcGeneratorPlugin}.
+ * </p>
+ * <pre> GenerationResult result = new GrpcGenerator().generate(GenerationRequest.parse(projectDir,
+ *     "rxjava3", "-I=proto", "--java_out=src-gen", "health.proto").build());</pre>
  * <p>
  * Example
  * </p>
@@ -68,296 +157,644 @@ import aQute.libg.command.Command;
  */
 public class GrpcGenerator {
 
-	private static final String BND_CACHE_DIR = "~/.bnd/cache";
+	static final String BND_CACHE_DIR = "~/.bnd/cache";
 	private static final Logger log = LoggerFactory.getLogger(GrpcGenerator.class.getName());
-	private static final String PROTOC_TARGET_NAME = "protoc";
+	static final String PROTOC_TARGET_NAME = "protoc";
 
 	private static final String PROTOGEN_PREFIX = "protoc-gen-";
 
-	private static final String GRPC_ID = "grpc-java";
-	private static final String GRPC_TARGET_NAME = PROTOGEN_PREFIX + GRPC_ID;
+	private static final String PRUNE_COMMAND = "prune";
+	private static final String PREFETCH_COMMAND = "prefetch";
+	private static final String EXPORT_COMMAND = "export";
+	private static final String IMPORT_COMMAND = "import";
+	private static final String SERVE_COMMAND = "serve";
+	private static final String BATCH_COMMAND = "batch";
 
-	private static final String RXGRPC_ID = "rxgrpc";
-	private static final String RXGRPC_TARGET_NAME = PROTOGEN_PREFIX + RXGRPC_ID;
+	static final String GRPC_ID = "grpc-java";
+	static final String GRPC_TARGET_NAME = PROTOGEN_PREFIX + GRPC_ID;
 
-	private static final String RX3GRPC_ID = "rx3grpc";
-	private static final String RX3GRPC_TARGET_NAME = PROTOGEN_PREFIX + RX3GRPC_ID;
+	static final String RXGRPC_ID = "rxgrpc";
+	static final String RXGRPC_TARGET_NAME = PROTOGEN_PREFIX + RXGRPC_ID;
 
-	private static final String GRPC_OSGI_ID = "grpc-osgi-generator";
-	private static final String GRPC_OSGI_TARGET_NAME = PROTOGEN_PREFIX + GRPC_OSGI_ID;
+	static final String RX3GRPC_ID = "rx3grpc";
+	static final String RX3GRPC_TARGET_NAME = PROTOGEN_PREFIX + RX3GRPC_ID;
 
-	@SuppressWarnings("serial")
-	private Map<String, List<String>> targetExeMap = new HashMap<String, List<String>>() {
-		{
-			put(PROTOC_TARGET_NAME, new ArrayList<String>() {
-				{
-					add("/exe/protoc-windows-x86_64");
-					add("/exe/protoc-osx-x86_64");
-					add("/exe/protoc-linux-x86_64");
-				}
-			});
-			put(GRPC_TARGET_NAME, new ArrayList<String>() {
-				{
-					add("/exe/grpc-java-windows-x86_64");
-					add("/exe/grpc-java-osx-x86_64");
-					add("/exe/grpc-java-linux-x86_64");
-				}
-			});
-			put(RXGRPC_TARGET_NAME, new ArrayList<String>() {
-				{
-					add("/exe/rxgrpc-windows-x86_64");
-					add("/exe/rxgrpc-osx-x86_64");
-					add("/exe/rxgrpc-linux-x86_64");
-				}
-			});
-			put(RX3GRPC_TARGET_NAME, new ArrayList<String>() {
-				{
-					add("/exe/rx3grpc-windows-x86_64");
-					add("/exe/rx3grpc-osx-x86_64");
-					add("/exe/rx3grpc-linux-x86_64");
-				}
-			});
-			put(GRPC_OSGI_TARGET_NAME, new ArrayList<String>() {
-				{
-					add("/exe/grpc-osgi-generator-windows-x86_64");
-					add("/exe/grpc-osgi-generator-osx-x86_64");
-					add("/exe/grpc-osgi-generator-linux-x86_64");
-				}
-			});
-		}
-	};
+	static final String GRPC_OSGI_ID = "grpc-osgi-generator";
+	static final String GRPC_OSGI_TARGET_NAME = PROTOGEN_PREFIX + GRPC_OSGI_ID;
 
-	private String getOsName() {
-		return System.getProperty("os.name").toLowerCase();
+	private void addProtocPlugin(Command cmd, String pluginId, String pluginLocation, String outId, String outValue) {
+		StringBuffer sb = new StringBuffer("--plugin=");
+		sb.append(pluginId).append("=").append(pluginLocation);
+		cmd.add(sb.toString());
+		if (outId != null) {
+			cmd.add("--" + outId + "_out=" + outValue);
+		}
 	}
 
-	private boolean isWindows() {
-		return getOsName().startsWith("windows");
+	void addGrpcOsgiPlugin(Command cmd, File grpcOsgiExe, String out_dir, boolean rxjava3) {
+		StringBuffer sb = new StringBuffer("--plugin=");
+		sb.append(GRPC_OSGI_TARGET_NAME).append("=").append(grpcOsgiExe.getAbsolutePath());
+		cmd.add(sb.toString());
+		if (rxjava3) {
+			cmd.add("--" + GRPC_OSGI_ID + "_opt=" + "rxjava3");
+		}
+		cmd.add("--" + GRPC_OSGI_ID + "_out=" + out_dir);
 	}
 
-	private boolean isMac() {
-		String osName = getOsName();
-		return osName.startsWith("mac") || osName.startsWith("darwin") || osName.startsWith("osx");
+	/**
+	 * The executables needed for the request, protoc first
+	 */
+	static List<String> getTargetNames(GenerationRequest request) {
+		List<String> targetNames = new ArrayList<String>();
+		targetNames.add(PROTOC_TARGET_NAME);
+		if (request.isGrpc()) {
+			targetNames.add(GRPC_TARGET_NAME);
+			if (request.isOsgi()) {
+				targetNames.add(request.isRxjava3() ? RX3GRPC_TARGET_NAME : RXGRPC_TARGET_NAME);
+				targetNames.add(GRPC_OSGI_TARGET_NAME);
+			}
+		}
+		return targetNames;
 	}
 
-	private boolean isLinux() {
-		return getOsName().startsWith("linux");
+	static ExeCache getExeCache(GenerationRequest request) {
+		File cacheDir = request.getCacheDir();
+		if (!cacheDir.exists()) {
+			cacheDir.mkdirs();
+		}
+		return new ExeCache(cacheDir, request.getSystemCacheDirs(), request.getExeArtifact());
 	}
 
-	private static long getModified() throws NumberFormatException, IOException {
-		String timestamp = IO.collect(GrpcGenerator.class.getResource("timestamp.txt"));
-		if (timestamp == null || timestamp.equals("${now;long}")) {
-			return 0L;
-		}
-		return Long.parseLong(Strings.trim(timestamp));
+	private static CachePruner getCachePruner(GenerationRequest request) {
+		return new CachePruner(request.getCacheDir(), request.getCacheSize(), ExeCache.RECORD_SUFFIX);
 	}
 
-	private File cacheFile(File cacheDir, String fileName) throws IOException {
-		if (log.isDebugEnabled()) {
-			log.debug("checking cache for file=" + fileName + " in cacheDir=" + cacheDir.getAbsolutePath());
-		}
-		// Look for target file
-		File f = IO.getFile(cacheDir, fileName);
-		// if windows and !f.exists() and f not a jar
-		if (isWindows() && !f.exists() && !f.getAbsolutePath().endsWith(".jar")) {
-			f = IO.getFile(cacheDir, fileName + ".exe");
-		}
-		long modified = getModified();
-		// if f is not there or it's been recently modified
-		if (!f.isFile() || f.lastModified() < modified) {
-			// get resource name
-			List<String> exeNames = targetExeMap.get(fileName);
-			if (exeNames == null)
-				throw new IllegalArgumentException("Can't find exes for targetName=" + fileName);
-			String name = null;
-			// get appropriate for OS
-			if (isWindows())
-				name = exeNames.get(0);
-			else if (isMac()) {
-				name = exeNames.get(1);
-			} else if (isLinux())
-				name = exeNames.get(2);
-			// If can't find we return null
-			if (name == null)
-				return null;
-			// Get proto exe resource
-			URL resource = GrpcGenerator.class.getResource(name);
-			// resource not there...there are problems
-			if (resource == null) {
-				throw new IllegalArgumentException("Corrupt jar, not found " + name);
+	/**
+	 * Run the generation of the request. This method does not use any state of this object, so it can be called
+	 * concurrently, and it never exits the JVM.
+	 *
+	 * @param request the generation to run
+	 * @return the result, with a non zero exit code if protoc failed
+	 * @throws Exception if protoc could not be run, e.g. because the binaries are not available
+	 */
+	public GenerationResult generate(GenerationRequest request) throws Exception {
+		// cache protoc and all needed plugin exes
+		final Map<String, File> exes = getExeCache(request).getExes(getTargetNames(request));
+		// prune the caches while protoc runs
+		Thread pruner = getCachePruner(request).pruneInBackground(ExeCache.getInUseDirs());
+		OutputCache outputCache = request.getOutputCache() == null ? null
+				: new OutputCache(request.getOutputCache(), request.getOutputCacheSize());
+		Thread outputPruner = outputCache == null ? null : outputCache.pruneInBackground();
+		DescriptorCache descriptorCache = request.isDescriptorCache()
+				? new DescriptorCache(new File(request.getCacheDir(), DescriptorCache.DESCRIPTORS_DIR),
+						request.getCacheSize())
+				: null;
+		Thread descriptorPruner = descriptorCache == null ? null : descriptorCache.pruneInBackground();
+		try {
+			return generate(request, exes, outputCache, descriptorCache);
+		} finally {
+			if (pruner != null) {
+				pruner.join();
 			}
-			if (log.isDebugEnabled()) {
-				log.debug("cacheDir=" + cacheDir.getAbsolutePath() + ";targetFileName=" + fileName);
+			if (outputPruner != null) {
+				outputPruner.join();
 			}
-			if (log.isDebugEnabled()) {
-				log.debug("copying embedded resource=" + fileName + " to cacheDir=" + cacheDir.getAbsolutePath());
+			if (descriptorPruner != null) {
+				descriptorPruner.join();
 			}
-			// copy from the resource to the target file f
-			IO.copy(resource, f);
-			f.setLastModified(modified);
-			// If not windows, set perms
-			if (!isWindows()) {
+		}
+	}
+
+	private GenerationResult generate(GenerationRequest request, Map<String, File> exes, OutputCache outputCache,
+			DescriptorCache descriptorCache) throws Exception {
+		ProtocArguments protocArguments = new ProtocArguments(request.getWorkingDirectory(),
+				request.getProtocArguments(), getPluginIds());
+		GenerationState state = request.isIncremental() || outputCache != null
+				? GenerationState.compute(request, protocArguments, exes)
+				: null;
+		GenerationState previous = null;
+		if (state != null) {
+			previous = state.readPrevious();
+			if (request.isIncremental() && state.isUpToDate(previous)) {
 				if (log.isDebugEnabled()) {
-					log.debug("setting permissions for file=" + f.getAbsolutePath());
+					log.debug("skipping generation, fingerprint=" + state.getFingerprint() + " did not change");
 				}
-				Files.setPosixFilePermissions(f.toPath(), EnumSet.of(PosixFilePermission.OWNER_EXECUTE,
-						PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+				return new GenerationResult(0, "", Collections.<File> emptyList());
 			}
 		}
-		if (log.isDebugEnabled()) {
-			log.debug("cache includes file=" + f.getAbsolutePath());
+		// execute, collecting the error output as diagnostics
+		ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+		Appendable out = new ByteAppendable(request.getOut(), null);
+		Appendable err = new ByteAppendable(request.getErr(), diagnostics);
+		int execute = 0;
+		List<File> files = Collections.emptyList();
+		// protoc and the plugins write into a stage, so that unchanged files are not touched
+		try (OutputStage stage = new OutputStage(request, request.isCompressArchive())) {
+			boolean restored = state != null && outputCache != null
+					&& outputCache.restore(state.getCacheKey(), stage.getStagingDirs());
+			if (!restored) {
+				GenerationRequest run = request;
+				// only generate the inputs that changed, the filters need all inputs
+				if (state != null && request.isIncremental() && !request.isFiltered()) {
+					List<String> changed = state.getChangedInputs(previous);
+					if (changed.size() < protocArguments.getInputs().size()) {
+						if (log.isDebugEnabled()) {
+							log.debug("generating " + changed.size() + " of " + protocArguments.getInputs().size()
+									+ " inputs");
+						}
+						run = request.toBuilder().protocArguments(protocArguments.getArguments(changed)).build();
+						protocArguments = new ProtocArguments(run.getWorkingDirectory(), run.getProtocArguments(),
+								getPluginIds());
+					}
+				}
+				// take the files imported from proto paths without inputs from a cached descriptor set
+				if (descriptorCache != null) {
+					List<String> arguments = descriptorCache.getArguments(protocArguments,
+							exes.get(PROTOC_TARGET_NAME));
+					if (arguments != null) {
+						run = run.toBuilder().protocArguments(arguments).build();
+						protocArguments = new ProtocArguments(run.getWorkingDirectory(), run.getProtocArguments(),
+								getPluginIds());
+					}
+				}
+				run = stage.stage(run);
+				// nothing to run if inputs were only removed
+				if (!protocArguments.getInputs().isEmpty() || state == null) {
+					List<List<String>> shards = getShards(run, protocArguments);
+					execute = shards.size() > 1 ? executeShards(run, protocArguments, shards, exes, out, err)
+							: execute(run, protocArguments, exes, out, err);
+				}
+			}
+			if (execute == 0) {
+				files = stage.commit();
+				if (state != null) {
+					List<File> generated = stage.getFiles();
+					state.deleteStale(previous, protocArguments.getInputs(), generated);
+					List<File> outputs = state.write(previous, protocArguments.getInputs(), generated);
+					if (outputCache != null && !restored) {
+						store(outputCache, state, stage, outputs);
+					}
+				}
+			}
 		}
-		return f;
-	}
-
-	private File cacheExe(File cacheDir, String targetName) throws IOException {
-		File f = cacheFile(cacheDir, targetName);
-		if (f == null)
-			throw new IllegalArgumentException(
-					"Cannot find " + targetName + " to copy to " + cacheDir.getAbsolutePath());
-		if (isWindows() && !f.getName().endsWith(".exe")) {
-			File moved = new File(cacheDir, targetName + ".exe");
-			Files.move(f.toPath(), moved.toPath());
-			f = moved;
+		if (log.isDebugEnabled() && execute != 0) {
+			log.debug("ERROR.  resulting errorCode=" + Integer.toString(execute));
 		}
-		return f;
+		return new GenerationResult(execute, new String(diagnostics.toByteArray(), StandardCharsets.UTF_8), files);
 	}
 
-	private void addProtocPlugin(Command cmd, String pluginId, String pluginLocation, String outId, String outValue) {
-		StringBuffer sb = new StringBuffer("--plugin=");
-		sb.append(pluginId).append("=").append(pluginLocation);
-		cmd.add(sb.toString());
-		if (outId != null) {
-			cmd.add("--" + outId + "_out=" + outValue);
+	private static void store(OutputCache outputCache, GenerationState state, OutputStage stage, List<File> outputs) {
+		try {
+			outputCache.store(state.getCacheKey(), stage.getOutputDirs(), outputs);
+		} catch (IOException e) {
+			// the generation succeeded, only later builds are slower
+			log.warn("could not store generated files in output cache", e);
 		}
 	}
 
-	private String findInArgs(List<String> argsList, String argStart) {
-		Optional<String> opt = argsList.stream().filter(arg -> arg.startsWith(argStart)).findFirst();
-		return (opt.isPresent()) ? opt.get() : null;
+	/**
+	 * Run protoc and the plugins for all inputs of the request. The service plugins only run for the inputs that
+	 * declare services, as they generate nothing for the others.
+	 */
+	private int execute(GenerationRequest request, ProtocArguments protocArguments, Map<String, File> exes,
+			Appendable out, Appendable err) throws Exception {
+		if (request.isFiltered())
+			return executeFiltered(request, protocArguments, exes, out, err);
+		if (request.isMultiplex() && request.isGrpc() && protocArguments.isSupported())
+			return executeMultiplexed(request, protocArguments, exes, out, err);
+		return executeSplit(request, protocArguments, exes, getServiceInputs(request, protocArguments), out, err);
 	}
 
-	private boolean rxjava3 = false;
-	private boolean osgi = true;
-	private boolean grpc = true;
-	private File cacheDir;
-	private String java_out_dir;
-	private String grpc_out_dir;
-	private String rxjava_out_dir;
-	private String grpc_osgi_out_dir;
-
-	private String[] processArgs(String[] args) {
-		// deal with args: noosgi means no osgi generation
-		List<String> argsList = new ArrayList<String>(Arrays.asList(args));
-		// Look for 'noosgi' argument
-		final String noosgiArg = findInArgs(argsList, "noosgi");
-		if (noosgiArg != null) {
-			argsList.remove("noosgi");
-			osgi = false;
-		}
-		// 'nogrpc' argument. If 'nogrpc' argument is set then noosgi is implied
-		String nogrpcArg = findInArgs(argsList, "nogrpc");
-		boolean grpc = true;
-		if (nogrpcArg != null) {
-			argsList.remove("nogrpc");
-			grpc = false;
-		}
-		// cacheDir argument
-		String cacheDirArg = findInArgs(argsList, "cacheDir");
-		if (cacheDirArg == null) {
-			cacheDirArg = BND_CACHE_DIR;
-		} else {
-			cacheDirArg = cacheDirArg.split("=")[1];
-			argsList.remove("cacheDir");
-		}
-		// Find --java_out argument and set if not set
-		this.java_out_dir = findInArgs(argsList, "--java_out");
-		if (this.java_out_dir == null) {
-			this.grpc = false;
-			this.osgi = false;
-		} else {
-			this.java_out_dir = java_out_dir.split("=")[1];
-		}
-		// Look for rx3grpc
-		final String rx3grpcArg = findInArgs(argsList, "rxjava3");
-		if (rx3grpcArg != null) {
-			argsList.remove("rxjava3");
-			this.rxjava3 = true;
+	/**
+	 * Run protoc alone for the inputs without services, and protoc with the plugins for the others
+	 *
+	 * @param serviceInputs the inputs with services, or <code>null</code> to run the plugins for all inputs
+	 */
+	private int executeSplit(GenerationRequest request, ProtocArguments protocArguments, Map<String, File> exes,
+			List<String> serviceInputs, Appendable out, Appendable err) throws Exception {
+		if (serviceInputs == null)
+			return createCommand(request, exes).execute((InputStream) null, out, err);
+		if (log.isDebugEnabled()) {
+			log.debug("running the service plugins for " + serviceInputs.size() + " of "
+					+ protocArguments.getInputs().size() + " inputs");
 		}
-		if (this.grpc) {
-			this.grpc_out_dir = findInArgs(argsList, "--" + GRPC_ID + "_out");
+		// protoc alone for the inputs without services
+		List<String> messageArguments = new ArrayList<String>(protocArguments.getArguments());
+		messageArguments.removeAll(serviceInputs);
+		GenerationRequest messageRequest = request.toBuilder().grpc(false).protocArguments(messageArguments).build();
+		int execute = createCommand(messageRequest, exes).execute((InputStream) null, out, err);
+		if (execute != 0 || serviceInputs.isEmpty())
+			return execute;
+		List<String> serviceArguments = protocArguments.getArguments(serviceInputs);
+		GenerationRequest serviceRequest = request.toBuilder().protocArguments(serviceArguments).build();
+		return createCommand(serviceRequest, exes).execute((InputStream) null, out, err);
+	}
+
+	/**
+	 * @return the inputs that declare services, or <code>null</code> if the service plugins have to run for all
+	 *         inputs
+	 */
+	private static List<String> getServiceInputs(GenerationRequest request, ProtocArguments protocArguments)
+			throws IOException {
+		if (!request.isGrpc() || !protocArguments.isSupported())
+			return null;
+		ProtoGraph graph;
+		try {
+			graph = new ProtoGraph(protocArguments);
+		} catch (IllegalArgumentException e) {
+			// let protoc report it
+			return null;
 		}
-		if (this.osgi) {
-			this.rxjava_out_dir = findInArgs(argsList, "--" + (this.rxjava3 ? RX3GRPC_ID : RXGRPC_ID) + "_out");
+		List<String> serviceInputs = new ArrayList<String>();
+		for (Map.Entry<String, String> input : graph.getInputs().entrySet()) {
+			if (graph.hasServices(input.getValue())) {
+				serviceInputs.add(input.getKey());
+			}
 		}
+		return serviceInputs.size() == protocArguments.getInputs().size() ? null : serviceInputs;
+	}
 
-		this.cacheDir = IO.getFile(cacheDirArg);
-		if (!this.cacheDir.exists()) {
-			this.cacheDir.mkdirs();
-		}
-		if (log.isDebugEnabled()) {
-			log.debug("OS=" + System.getProperty("os.name"));
-			if (!osgi) {
-				log.debug("noosgi is set");
+	/**
+	 * Split the inputs of the request over its shards, by the import graph
+	 *
+	 * @return the inputs of every shard, a single shard if the request is not sharded
+	 */
+	private static List<List<String>> getShards(GenerationRequest request, ProtocArguments protocArguments)
+			throws IOException {
+		List<String> inputs = protocArguments.getInputs();
+		// the filters need all inputs to find the types they reference
+		if (request.getShards() < 2 || inputs.size() < 2 || !protocArguments.isSupported() || request.isFiltered())
+			return Collections.singletonList(inputs);
+		try {
+			List<List<String>> shards = new ProtoGraph(protocArguments).shard(request.getShards());
+			if (log.isDebugEnabled()) {
+				log.debug("split " + inputs.size() + " inputs into " + shards.size() + " shards");
 			}
-			if (!grpc) {
-				log.debug("nogrpc is set");
+			return shards;
+		} catch (IllegalArgumentException e) {
+			// let protoc report it
+			if (log.isDebugEnabled()) {
+				log.debug("not sharding: " + e.getMessage());
 			}
-			log.debug("java_out dir=" + java_out_dir);
+			return Collections.singletonList(inputs);
 		}
-		return argsList.toArray(new String[argsList.size()]);
 	}
 
-	void addGrpcOsgiPlugin(Command cmd, File grpcOsgiExe, String out_dir) {
-		StringBuffer sb = new StringBuffer("--plugin=");
-		sb.append(GRPC_OSGI_TARGET_NAME).append("=").append(grpcOsgiExe.getAbsolutePath());
-		cmd.add(sb.toString());
-		if (rxjava3) {
-			cmd.add("--" + GRPC_OSGI_ID + "_opt=" + "rxjava3");
+	/**
+	 * Run a protoc and plugins pipeline for every shard, concurrently, bounded by the number of processors. The output
+	 * of each shard is passed on in the order of the shards when it is done.
+	 *
+	 * @return the first non zero exit code of the shards, 0 if all succeeded
+	 */
+	private int executeShards(GenerationRequest request, ProtocArguments protocArguments, List<List<String>> shards,
+			Map<String, File> exes, Appendable out, Appendable err) throws Exception {
+		int threads = Math.min(shards.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "GrpcGenerator-shard");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			List<StringBuilder> outs = new ArrayList<StringBuilder>();
+			List<StringBuilder> errs = new ArrayList<StringBuilder>();
+			for (List<String> shard : shards) {
+				List<String> shardArgs = protocArguments.getArguments(shard);
+				GenerationRequest shardRequest = request.toBuilder().protocArguments(shardArgs).build();
+				ProtocArguments shardArguments = new ProtocArguments(request.getWorkingDirectory(),
+						shardRequest.getProtocArguments(), getPluginIds());
+				StringBuilder shardOut = new StringBuilder();
+				StringBuilder shardErr = new StringBuilder();
+				outs.add(shardOut);
+				errs.add(shardErr);
+				futures.add(executor.submit(() -> execute(shardRequest, shardArguments, exes, shardOut, shardErr)));
+			}
+			int execute = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				int shardExecute = ExeCache.getResult(futures.get(i));
+				out.append(outs.get(i));
+				err.append(errs.get(i));
+				if (execute == 0) {
+					execute = shardExecute;
+				}
+			}
+			return execute;
+		} finally {
+			executor.shutdownNow();
 		}
-		cmd.add("--" + GRPC_OSGI_ID + "_out=" + out_dir);
 	}
 
-	void execute(String[] args) throws Exception {
-		args = processArgs(args);
-		// cache protoc exe
-		final File protocExe = cacheExe(cacheDir, PROTOC_TARGET_NAME);
+	/**
+	 * The protoc command that runs all plugins itself
+	 */
+	private Command createCommand(GenerationRequest request, Map<String, File> exes) {
 		final Command cmd = new Command();
+		cmd.setCwd(request.getWorkingDirectory());
 		// add protoc exe path
-		cmd.add(protocExe.getAbsolutePath());
+		cmd.add(exes.get(PROTOC_TARGET_NAME).getAbsolutePath());
 		// Add protoc plugins (grpc-java, rxgrpc, grpc-osgi-generator)
-		if (grpc) {
+		if (request.isGrpc()) {
 			// grpc-java generator protoc plugin...binary
-			File grpcExe = cacheExe(cacheDir, GRPC_TARGET_NAME);
-			addProtocPlugin(cmd, GRPC_TARGET_NAME, grpcExe.getAbsolutePath(), GRPC_ID,
-					(this.grpc_out_dir != null ? this.grpc_out_dir : java_out_dir));
+			File grpcExe = exes.get(GRPC_TARGET_NAME);
+			addProtocPlugin(cmd, GRPC_TARGET_NAME, grpcExe.getAbsolutePath(), GRPC_ID, request.getGrpcOut());
 			// only add these two if doing osgi
-			if (osgi) {
-				String rxgrpcTargetName = rxjava3 ? RX3GRPC_TARGET_NAME : RXGRPC_TARGET_NAME;
-				String rxgrpcId = rxjava3 ? RX3GRPC_ID : RXGRPC_ID;
+			if (request.isOsgi()) {
+				String rxgrpcTargetName = request.isRxjava3() ? RX3GRPC_TARGET_NAME : RXGRPC_TARGET_NAME;
+				String rxgrpcId = request.isRxjava3() ? RX3GRPC_ID : RXGRPC_ID;
 				// rxgrpc
-				File rxgrpcExe = cacheExe(cacheDir, rxgrpcTargetName);
+				File rxgrpcExe = exes.get(rxgrpcTargetName);
 				addProtocPlugin(cmd, rxgrpcTargetName, rxgrpcExe.getAbsolutePath(), rxgrpcId,
-						(this.rxjava_out_dir != null ? this.rxjava_out_dir : java_out_dir));
+						request.getRxgrpcOut());
 				// grpc-osgi-generator
-				File grpcOsgiExe = cacheExe(cacheDir, GRPC_OSGI_TARGET_NAME);
-				addGrpcOsgiPlugin(cmd, grpcOsgiExe, (this.grpc_osgi_out_dir != null?this.grpc_osgi_out_dir: java_out_dir));
+				File grpcOsgiExe = exes.get(GRPC_OSGI_TARGET_NAME);
+				addGrpcOsgiPlugin(cmd, grpcOsgiExe, request.getGrpcOsgiOut(), request.isRxjava3());
 			}
 		}
+		if (request.getJavaOut() != null) {
+			cmd.add("--java_out=" + request.getJavaOut());
+		}
 		// add remaining args from command line
-		cmd.add(args);
-		// execute
-		int execute = cmd.execute(System.in, System.out, System.err);
-		if (execute != 0) {
-			if (log.isDebugEnabled()) {
-				log.debug("ERROR.  resulting errorCode=" + Integer.toString(execute));
+		cmd.addAll(request.getProtocArguments());
+		return cmd;
+	}
+
+	private static List<String> getPluginIds() {
+		return Arrays.asList(GRPC_ID, RXGRPC_ID, RX3GRPC_ID, GRPC_OSGI_ID);
+	}
+
+	/**
+	 * The plugins of the request, in the order protoc would run them, with the parameters protoc would give them
+	 */
+	private static List<PluginMultiplexer.Plugin> getPlugins(GenerationRequest request,
+			ProtocArguments protocArguments, Map<String, File> exes) {
+		List<PluginMultiplexer.Plugin> plugins = new ArrayList<PluginMultiplexer.Plugin>();
+		plugins.add(createPlugin(request, protocArguments, GRPC_ID, exes.get(GRPC_TARGET_NAME), request.getGrpcOut(),
+				Collections.<String> emptyList()));
+		if (request.isOsgi()) {
+			String rxgrpcId = request.isRxjava3() ? RX3GRPC_ID : RXGRPC_ID;
+			plugins.add(createPlugin(request, protocArguments, rxgrpcId,
+					exes.get(request.isRxjava3() ? RX3GRPC_TARGET_NAME : RXGRPC_TARGET_NAME), request.getRxgrpcOut(),
+					Collections.<String> emptyList()));
+			plugins.add(createPlugin(request, protocArguments, GRPC_OSGI_ID, exes.get(GRPC_OSGI_TARGET_NAME),
+					request.getGrpcOsgiOut(),
+					request.isRxjava3() ? Collections.singletonList("rxjava3") : Collections.<String> emptyList()));
+		}
+		return plugins;
+	}
+
+	private static PluginMultiplexer.Plugin createPlugin(GenerationRequest request, ProtocArguments protocArguments,
+			String id, File exe, String out, List<String> options) {
+		String[] split = ProtocArguments.splitOut(out);
+		List<String> parameters = new ArrayList<String>();
+		if (!split[0].isEmpty()) {
+			parameters.add(split[0]);
+		}
+		parameters.addAll(options);
+		parameters.addAll(protocArguments.getPluginOptions(id));
+		return new PluginMultiplexer.Plugin(id, exe, String.join(",", parameters),
+				IO.getFile(request.getWorkingDirectory(), split[1]));
+	}
+
+	/**
+	 * Run protoc for the java code and a descriptor set only, and run the plugins concurrently on the descriptor set
+	 */
+	private int executeMultiplexed(GenerationRequest request, ProtocArguments protocArguments,
+			Map<String, File> exes, Appendable out, Appendable err) throws Exception {
+		Path descriptorSet = Files.createTempFile("grpc-generator", ".pb");
+		try {
+			final Command cmd = new Command();
+			cmd.setCwd(request.getWorkingDirectory());
+			cmd.add(exes.get(PROTOC_TARGET_NAME).getAbsolutePath());
+			cmd.add("--java_out=" + request.getJavaOut());
+			cmd.add("--descriptor_set_out=" + descriptorSet.toFile().getAbsolutePath());
+			cmd.add("--include_imports");
+			cmd.add("--include_source_info");
+			cmd.addAll(protocArguments.getArguments());
+			int execute = cmd.execute((InputStream) null, out, err);
+			if (execute != 0)
+				return execute;
+			byte[] set = IO.read(descriptorSet.toFile());
+			List<String> names = PluginMultiplexer.getFileNames(set);
+			List<String> filesToGenerate = new ArrayList<String>();
+			for (String input : protocArguments.getInputs()) {
+				String name = protocArguments.getProtoName(input);
+				if (name == null || !names.contains(name)) {
+					if (log.isDebugEnabled()) {
+						log.debug("cannot find the proto file of input=" + input + ", running the plugins in protoc");
+					}
+					return createCommand(request, exes).execute((InputStream) null, out, err);
+				}
+				filesToGenerate.add(name);
+			}
+			// the service plugins generate nothing for files without services
+			filesToGenerate.retainAll(PluginMultiplexer.getServiceFileNames(set));
+			if (filesToGenerate.isEmpty()) {
+				if (log.isDebugEnabled()) {
+					log.debug("no services in the inputs, not running the plugins");
+				}
+				return 0;
+			}
+			List<PluginMultiplexer.Plugin> plugins = getPlugins(request, protocArguments, exes);
+			return new PluginMultiplexer(request.getWorkingDirectory(), plugins).run(set, filesToGenerate, err);
+		} finally {
+			Files.deleteIfExists(descriptorSet);
+		}
+	}
+
+	/**
+	 * Run protoc for a descriptor set of the inputs only, remove what the filters of the request do not select from
+	 * the inputs, and generate the code from the filtered descriptor set
+	 */
+	private int executeFiltered(GenerationRequest request, ProtocArguments protocArguments, Map<String, File> exes,
+			Appendable out, Appendable err) throws Exception {
+		if (!protocArguments.isSupported())
+			throw new IllegalArgumentException(
+					"include and exclude can't be used with argument files or descriptor set outputs");
+		Path descriptorSet = Files.createTempFile("grpc-generator", ".pb");
+		try {
+			final Command cmd = new Command();
+			cmd.setCwd(request.getWorkingDirectory());
+			cmd.add(exes.get(PROTOC_TARGET_NAME).getAbsolutePath());
+			cmd.add("--descriptor_set_out=" + descriptorSet.toFile().getAbsolutePath());
+			cmd.add("--include_imports");
+			cmd.add("--include_source_info");
+			for (String protoPath : protocArguments.getProtoPaths()) {
+				cmd.add("--proto_path=" + protoPath);
+			}
+			cmd.addAll(protocArguments.getParseOptions());
+			cmd.addAll(protocArguments.getInputs());
+			int execute = cmd.execute((InputStream) null, out, err);
+			if (execute != 0)
+				return execute;
+			byte[] set = IO.read(descriptorSet.toFile());
+			List<String> names = PluginMultiplexer.getFileNames(set);
+			List<String> filesToGenerate = new ArrayList<String>();
+			for (String input : protocArguments.getInputs()) {
+				String name = protocArguments.getProtoName(input);
+				if (name == null || !names.contains(name))
+					throw new IllegalArgumentException("Cannot find the proto file of input " + input + " to filter");
+				filesToGenerate.add(name);
 			}
+			byte[] filtered = new DescriptorFilter(request.getIncludes(), request.getExcludes()).filter(set,
+					filesToGenerate);
+			Files.write(descriptorSet, filtered);
+			List<String> arguments = protocArguments.getArguments(descriptorSet.toFile(), filesToGenerate);
+			GenerationRequest filteredRequest = request.toBuilder().protocArguments(arguments).build();
+			ProtocArguments filteredArguments = new ProtocArguments(request.getWorkingDirectory(), arguments,
+					getPluginIds());
+			if (request.isMultiplex() && request.isGrpc())
+				return executeMultiplexed(filteredRequest, filteredArguments, exes, out, err);
+			List<String> serviceInputs = null;
+			if (request.isGrpc()) {
+				serviceInputs = new ArrayList<String>(filesToGenerate);
+				serviceInputs.retainAll(PluginMultiplexer.getServiceFileNames(filtered));
+			}
+			return executeSplit(filteredRequest, filteredArguments, exes, serviceInputs, out, err);
+		} finally {
+			Files.deleteIfExists(descriptorSet);
+		}
+	}
+
+	/**
+	 * Appends the bytes that protoc output collectors append as chars to a stream and a buffer, either may be
+	 * <code>null</code>
+	 */
+	private static class ByteAppendable implements Appendable {
+		private final OutputStream out;
+		private final ByteArrayOutputStream buffer;
+
+		ByteAppendable(OutputStream out, ByteArrayOutputStream buffer) {
+			this.out = out;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public synchronized Appendable append(char c) throws IOException {
+			if (out != null) {
+				out.write(c);
+				if (c == '\n') {
+					out.flush();
+				}
+			}
+			if (buffer != null) {
+				buffer.write(c);
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) throws IOException {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public synchronized Appendable append(CharSequence csq, int start, int end) throws IOException {
+			for (int i = start; i < end; i++) {
+				append(csq.charAt(i));
+			}
+			if (out != null) {
+				out.flush();
+			}
+			return this;
+		}
+	}
+
+	void execute(String[] args) throws Exception {
+		// forward to the daemon if requested, else run in this process
+		Integer forwarded = GeneratorDaemon.forward(IO.work, args, System.out, System.err);
+		int execute;
+		if (forwarded != null) {
+			execute = forwarded;
+		} else {
+			GenerationRequest request = GenerationRequest.parse(IO.work, args).out(System.out).err(System.err).build();
+			execute = generate(request).getExitCode();
+		}
+		if (execute != 0) {
 			System.exit(execute);
 		}
 	}
 
+	void prune(String[] args) throws Exception {
+		GenerationRequest request = GenerationRequest.parse(IO.work, args).build();
+		System.out.println("pruned " + getCachePruner(request).prune(ExeCache.getInUseDirs()));
+	}
+
+	void prefetch(String[] args) throws Exception {
+		GenerationRequest request = GenerationRequest.parse(IO.work, args).build();
+		for (Map.Entry<String, File> exe : getExeCache(request).prefetch(ExeCache.getTargetNames()).entrySet()) {
+			System.out.println(exe.getKey() + "=" + exe.getValue().getAbsolutePath());
+		}
+	}
+
+	void exportCache(String[] args) throws Exception {
+		GenerationRequest request = GenerationRequest.parse(IO.work, args).build();
+		File archive = getArchive(request);
+		int count = new CacheArchive(getExeCache(request).getCacheDir()).exportTo(archive);
+		System.out.println("exported " + count + " executables to " + archive.getAbsolutePath());
+	}
+
+	void importCache(String[] args) throws Exception {
+		GenerationRequest request = GenerationRequest.parse(IO.work, args).build();
+		File archive = getArchive(request);
+		int count = new CacheArchive(getExeCache(request).getCacheDir()).importFrom(archive);
+		System.out.println("imported " + count + " executables from " + archive.getAbsolutePath());
+	}
+
+	void batch(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> defaultArguments = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("threads=")) {
+				threads = Integer.parseInt(arg.substring("threads=".length()));
+			} else {
+				defaultArguments.add(arg);
+			}
+		}
+		if (defaultArguments.isEmpty() || threads < 1)
+			throw new IllegalArgumentException("Expected [threads=<n>] [<argument>...] <manifest> but got "
+					+ Arrays.asList(args));
+		File manifest = IO.getFile(IO.work, defaultArguments.remove(defaultArguments.size() - 1));
+		BatchRunner.Summary summary = new BatchRunner(this, threads, defaultArguments).run(manifest);
+		Encoder encoder = new JSONCodec().enc().writeDefaults().keepOpen().indent("  ");
+		encoder.to((OutputStream) System.out).put(summary).flush();
+		System.out.println();
+		if (summary.failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	private File getArchive(GenerationRequest request) {
+		List<String> args = request.getProtocArguments();
+		if (args.size() != 1)
+			throw new IllegalArgumentException("Expected a single archive file argument but got " + args);
+		return IO.getFile(request.getWorkingDirectory(), args.get(0));
+	}
+
 	public static void main(String args[]) throws Exception {
-		new GrpcGenerator().execute(args);
+		String command = args.length > 0 ? args[0] : "";
+		String[] commandArgs = args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : args;
+		switch (command) {
+		case PRUNE_COMMAND:
+			new GrpcGenerator().prune(commandArgs);
+			break;
+		case PREFETCH_COMMAND:
+			new GrpcGenerator().prefetch(commandArgs);
+			break;
+		case EXPORT_COMMAND:
+			new GrpcGenerator().exportCache(commandArgs);
+			break;
+		case IMPORT_COMMAND:
+			new GrpcGenerator().importCache(commandArgs);
+			break;
+		case SERVE_COMMAND:
+			GeneratorDaemon.serve(commandArgs);
+			break;
+		case BATCH_COMMAND:
+			new GrpcGenerator().batch(commandArgs);
+			break;
+		default:
+			new GrpcGenerator().execute(args);
+		}
 	}
 
 }
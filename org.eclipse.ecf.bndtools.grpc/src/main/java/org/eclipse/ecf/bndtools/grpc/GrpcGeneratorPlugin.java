@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.service.externalplugin.ExternalPlugin;
+import aQute.bnd.service.generate.BuildContext;
+import aQute.bnd.service.generate.Generator;
+import aQute.bnd.service.generate.Options;
+import aQute.lib.io.IO;
+
+/**
+ * GrpcGeneratorPlugin runs the {@link GrpcGenerator} inside the bnd build JVM as a bnd <b>-generate</b> plugin, so
+ * that a build does not start a JVM for every generation. The arguments are the same as for the {@link GrpcGenerator}
+ * main, after a <b>--</b> so that bnd passes them on as they are. If no --java_out is given, the output directory of
+ * the -generate clause is used. Relative paths are relative to the project directory.
+ * <p>
+ * The binary cache is shared by all projects the build JVM generates for.
+ * </p>
+ * <p>
+ * Example
+ * </p>
+ * <pre> -buildpath: org.eclipse.ecf.bndtools.grpc;version=1.3
+ * -generate \
+    proto; \
+        output = src-gen; \
+        generate = "grpc -- rxjava3 -I=proto health.proto"
+ * </pre>
+ *
+ * @author slewis
+ *
+ */
+@ExternalPlugin(name = GrpcGeneratorPlugin.NAME, objectClass = Generator.class)
+public class GrpcGeneratorPlugin implements Generator<Options> {
+
+	private static final Logger log = LoggerFactory.getLogger(GrpcGeneratorPlugin.class.getName());
+
+	public static final String NAME = "grpc";
+
+	private final GrpcGenerator generator = new GrpcGenerator();
+
+	@Override
+	public Optional<String> generate(BuildContext context, Options options) throws Exception {
+		List<String> args = options._arguments();
+		String[] arguments = args.toArray(new String[args.size()]);
+		GenerationRequest request = GenerationRequest.parse(context.getBase(), arguments).build();
+		File output = options.output();
+		if (request.getJavaOut() == null && output != null) {
+			request = request.toBuilder().javaOut(output.getAbsolutePath()).build();
+		}
+		for (File dir : request.getOutputDirs()) {
+			IO.mkdirs(OutputStage.isArchive(dir) ? dir.getAbsoluteFile().getParentFile() : dir);
+		}
+		GenerationResult result = generator.generate(request);
+		if (log.isDebugEnabled()) {
+			log.debug("generated " + result.getFiles().size() + " files for " + request);
+		}
+		if (!result.isSuccess())
+			return Optional.of("protoc failed with exitCode=" + result.getExitCode() + ": " + result.getDiagnostics());
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.io.NonClosingInputStream;
+
+/**
+ * OutputCache is a content addressed cache of generated files, in a local directory or one shared by several
+ * machines. An entry is a directory named by the cache key of a {@link GenerationState}, which only depends on the
+ * names and content of the proto files, the executables and the arguments, so the same generation in another
+ * checkout or on another machine has the same key. The entry holds an <b>outputs.zip</b> with the generated files of
+ * every output directory, and an <b>outputs.zip.sha256</b> record with its digest that is written after the zip is
+ * complete. Both are moved into place atomically, so concurrent builds can store and restore the same entries. The
+ * cache is kept within a size budget by a {@link CachePruner}.
+ *
+ * @author slewis
+ *
+ */
+class OutputCache {
+
+	private static final Logger log = LoggerFactory.getLogger(OutputCache.class.getName());
+
+	static final String OUTPUT_CACHE_ENV = "GRPC_GENERATOR_OUTPUT_CACHE";
+	static final String OUTPUT_CACHE_SIZE_ENV = "GRPC_GENERATOR_OUTPUT_CACHE_SIZE";
+	static final long DEFAULT_OUTPUT_CACHE_SIZE = 1024L * 1024 * 1024;
+	static final String OUTPUTS = "outputs.zip";
+
+	private final File cacheDir;
+	private final long maxSize;
+
+	OutputCache(File cacheDir, long maxSize) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the output cache size given by the GRPC_GENERATOR_OUTPUT_CACHE_SIZE environment variable, or the
+	 *         default
+	 */
+	static long getDefaultMaxSize() {
+		String size = System.getenv(OUTPUT_CACHE_SIZE_ENV);
+		return (size == null || size.trim().isEmpty()) ? DEFAULT_OUTPUT_CACHE_SIZE : CachePruner.parseSize(size);
+	}
+
+	/**
+	 * Prune the cache in a daemon thread if it is due
+	 *
+	 * @return the started thread, or <code>null</code> if pruning is not due
+	 */
+	Thread pruneInBackground() {
+		CachePruner pruner = new CachePruner(cacheDir, maxSize, ExeCache.RECORD_SUFFIX);
+		return pruner.pruneInBackground(Collections.<File> emptySet());
+	}
+
+	/**
+	 * Unpack the cached files of the key into the staging directories
+	 *
+	 * @return false if the key is not in the cache or the entry can't be used
+	 */
+	boolean restore(String key, List<File> stagingDirs) {
+		File entry = new File(cacheDir, key);
+		File outputs = new File(entry, OUTPUTS);
+		File record = new File(entry, OUTPUTS + ExeCache.RECORD_SUFFIX);
+		if (!record.isFile() || !outputs.isFile())
+			return false;
+		try {
+			String expected = getDigest(record);
+			String actual = ExeCache.toHex(IO.copy(outputs, ExeCache.sha256()));
+			if (!actual.equals(expected)) {
+				log.warn("cached outputs=" + outputs.getAbsolutePath() + " do not match digest=" + expected);
+				return false;
+			}
+			try (ZipInputStream zip = new ZipInputStream(IO.stream(outputs))) {
+				ZipEntry zipEntry;
+				while ((zipEntry = zip.getNextEntry()) != null) {
+					String name = zipEntry.getName();
+					int slash = name.indexOf('/');
+					int index = Integer.parseInt(name.substring(0, slash));
+					String path = name.substring(slash + 1);
+					if (index >= stagingDirs.size() || path.startsWith("/") || path.equals("..")
+							|| path.startsWith("../") || path.contains("/../"))
+						throw new IOException("Invalid entry " + name);
+					File file = new File(stagingDirs.get(index), path);
+					IO.mkdirs(file.getParentFile());
+					IO.copy(new NonClosingInputStream(zip), file);
+				}
+			}
+			CachePruner.touch(record);
+			if (log.isDebugEnabled()) {
+				log.debug("restored outputs of key=" + key + " from cacheDir=" + cacheDir);
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// e.g. pruned by another process while reading
+			if (log.isDebugEnabled()) {
+				log.debug("could not restore key=" + key + ": " + e);
+			}
+			// leave nothing of the entry behind for the generation
+			for (File dir : stagingDirs) {
+				IO.delete(dir);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Store the generated files under the key, unless it is already cached
+	 *
+	 * @param outputDirs the output directories, in the order of the staging directories
+	 * @param files the generated files in the output directories, an output archive is stored by its entries
+	 */
+	void store(String key, List<File> outputDirs, Collection<File> files) throws IOException {
+		File entry = new File(cacheDir, key);
+		File record = new File(entry, OUTPUTS + ExeCache.RECORD_SUFFIX);
+		if (record.isFile())
+			return;
+		IO.mkdirs(entry);
+		Path tmp = Files.createTempFile(entry.toPath(), OUTPUTS, ExeCache.TMP_SUFFIX);
+		try {
+			try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(tmp))) {
+				for (File file : files) {
+					int index = getIndex(outputDirs, file);
+					if (index < 0)
+						continue;
+					File dir = outputDirs.get(index);
+					if (OutputStage.isArchive(dir)) {
+						copyEntries(file, index, zip);
+					} else {
+						String path = dir.toPath().relativize(file.toPath()).toString();
+						path = path.replace(File.separatorChar, '/');
+						zip.putNextEntry(new ZipEntry(index + "/" + path));
+						IO.copy(file, (OutputStream) zip);
+						zip.closeEntry();
+					}
+				}
+			}
+			String digest = ExeCache.toHex(IO.copy(tmp.toFile(), ExeCache.sha256()));
+			ExeCache.moveAtomically(tmp, new File(entry, OUTPUTS).toPath());
+			long size = Files.size(entry.toPath().resolve(OUTPUTS));
+			String content = "key=" + key + "\nsha256=" + digest + "\nsize=" + size + "\n";
+			ExeCache.writeAtomically(content.getBytes(StandardCharsets.UTF_8), record);
+			if (log.isDebugEnabled()) {
+				log.debug("stored " + files.size() + " outputs of key=" + key + " in cacheDir=" + cacheDir);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static int getIndex(List<File> outputDirs, File file) {
+		for (int i = 0; i < outputDirs.size(); i++) {
+			File dir = outputDirs.get(i);
+			if (OutputStage.isArchive(dir) ? dir.equals(file) : file.toPath().startsWith(dir.toPath()))
+				return i;
+		}
+		return -1;
+	}
+
+	private static void copyEntries(File archive, int index, ZipOutputStream zip) throws IOException {
+		try (ZipFile zipFile = new ZipFile(archive)) {
+			for (ZipEntry archiveEntry : Collections.list(zipFile.entries())) {
+				if (archiveEntry.isDirectory())
+					continue;
+				zip.putNextEntry(new ZipEntry(index + "/" + archiveEntry.getName()));
+				try (InputStream in = zipFile.getInputStream(archiveEntry)) {
+					IO.copy(in, (OutputStream) zip);
+				}
+				zip.closeEntry();
+			}
+		}
+	}
+
+	static String getDigest(File record) throws IOException {
+		for (String line : IO.collect(record).split("\n")) {
+			if (line.startsWith("sha256="))
+				return line.substring("sha256=".length());
+		}
+		throw new IOException("No digest in " + record);
+	}
+}
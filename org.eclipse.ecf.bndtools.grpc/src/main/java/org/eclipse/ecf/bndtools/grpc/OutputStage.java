@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+
+/**
+ * OutputStage lets protoc and the plugins write into a temporary directory instead of the output directories of a
+ * request. When the generation succeeded, only the files that differ from the files in the output directories are
+ * copied, so that the files that did not change keep their modification time and are not compiled again by the
+ * tools that watch the output directories.
+ * <p>
+ * An output that is an archive, e.g. --java_out=src.srcjar, is staged in a directory as well, and written as one
+ * archive with its entries sorted and with a fixed time, so that it is only written when a generated file changed.
+ *
+ * @author slewis
+ *
+ */
+class OutputStage implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(OutputStage.class.getName());
+
+	/**
+	 * The time of every archive entry, 1980-01-01 00:00 in the local time zone, which is stored as is
+	 */
+	private static final long ARCHIVE_TIME = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+	private final File workingDirectory;
+	private final boolean compressArchive;
+	private final File root;
+	// output directory -> staging directory
+	private final Map<File, File> dirs = new LinkedHashMap<File, File>();
+
+	OutputStage(GenerationRequest request, boolean compressArchive) throws IOException {
+		this.workingDirectory = request.getWorkingDirectory();
+		this.compressArchive = compressArchive;
+		this.root = Files.createTempDirectory("grpc-generator").toFile();
+		for (File dir : request.getOutputDirs()) {
+			dirs.put(dir, new File(root, Integer.toString(dirs.size())));
+		}
+	}
+
+	/**
+	 * @return true if protoc writes the output to an archive rather than to a directory
+	 */
+	static boolean isArchive(File out) {
+		String name = out.getName();
+		return name.endsWith(".srcjar") || name.endsWith(".jar") || name.endsWith(".zip");
+	}
+
+	/**
+	 * @return the request with its output directories replaced by staging directories
+	 */
+	GenerationRequest stage(GenerationRequest request) throws IOException {
+		GenerationRequest.Builder builder = request.toBuilder();
+		if (request.getJavaOut() != null) {
+			builder.javaOut(stage(request.getJavaOut())).grpcOut(stage(request.getGrpcOut()));
+			builder.rxgrpcOut(stage(request.getRxgrpcOut())).grpcOsgiOut(stage(request.getGrpcOsgiOut()));
+		}
+		for (File dir : dirs.values()) {
+			IO.mkdirs(dir);
+		}
+		return builder.build();
+	}
+
+	private String stage(String out) {
+		String[] split = ProtocArguments.splitOut(out);
+		File dir = dirs.get(IO.getFile(workingDirectory, split[1]));
+		if (dir == null)
+			return out;
+		String path = dir.getAbsolutePath();
+		return split[0].isEmpty() ? path : split[0] + ":" + path;
+	}
+
+	/**
+	 * @return the output directories and archives of the request
+	 */
+	List<File> getOutputDirs() {
+		return new ArrayList<File>(dirs.keySet());
+	}
+
+	/**
+	 * @return the staging directory of every output directory, in the same order
+	 */
+	List<File> getStagingDirs() {
+		return new ArrayList<File>(dirs.values());
+	}
+
+	/**
+	 * @return the files in the output directories that correspond to the staged files, and the output archives
+	 */
+	List<File> getFiles() throws IOException {
+		List<File> files = new ArrayList<File>(getStagedFiles().keySet());
+		for (File out : dirs.keySet()) {
+			if (isArchive(out)) {
+				files.add(out);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Copy the staged files that differ from the files in the output directories
+	 *
+	 * @return the files in the output directories that were written
+	 */
+	List<File> commit() throws IOException {
+		List<File> changed = new ArrayList<File>();
+		for (Map.Entry<File, File> dir : dirs.entrySet()) {
+			if (isArchive(dir.getKey()) && writeArchive(dir.getKey(), dir.getValue())) {
+				changed.add(dir.getKey());
+			}
+		}
+		for (Map.Entry<File, File> file : getStagedFiles().entrySet()) {
+			File target = file.getKey();
+			File staged = file.getValue();
+			if (isSame(staged, target))
+				continue;
+			IO.mkdirs(target.getParentFile());
+			IO.copy(staged, target);
+			changed.add(target);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("changed files=" + changed);
+		}
+		return changed;
+	}
+
+	private static boolean isSame(File staged, File target) throws IOException {
+		if (!target.isFile() || target.length() != staged.length())
+			return false;
+		return Arrays.equals(IO.read(staged), IO.read(target));
+	}
+
+	/**
+	 * Write the staged files of an archive, and replace the archive if it is different
+	 *
+	 * @return true if the archive was written
+	 */
+	private boolean writeArchive(File archive, File stagingDir) throws IOException {
+		File parent = archive.getAbsoluteFile().getParentFile();
+		IO.mkdirs(parent);
+		// not a temp file, which would only be readable by the owner
+		Path tmp = new File(parent, archive.getName() + "." + System.nanoTime() + ExeCache.TMP_SUFFIX).toPath();
+		try {
+			try (ZipOutputStream zip = new ZipOutputStream(
+					Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+				for (Map.Entry<String, Path> file : getEntries(stagingDir).entrySet()) {
+					byte[] content = Files.readAllBytes(file.getValue());
+					ZipEntry entry = new ZipEntry(file.getKey());
+					entry.setTime(ARCHIVE_TIME);
+					if (!compressArchive) {
+						CRC32 crc = new CRC32();
+						crc.update(content);
+						entry.setMethod(ZipEntry.STORED);
+						entry.setSize(content.length);
+						entry.setCompressedSize(content.length);
+						entry.setCrc(crc.getValue());
+					}
+					zip.putNextEntry(entry);
+					zip.write(content);
+					zip.closeEntry();
+				}
+			}
+			if (isSame(tmp.toFile(), archive))
+				return false;
+			ExeCache.moveAtomically(tmp, archive.toPath());
+			return true;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * @return the staged files by the file in the output directory they are for, without the archives
+	 */
+	private Map<File, File> getStagedFiles() throws IOException {
+		Map<File, File> files = new LinkedHashMap<File, File>();
+		for (Map.Entry<File, File> dir : dirs.entrySet()) {
+			if (isArchive(dir.getKey()))
+				continue;
+			for (Map.Entry<String, Path> file : getEntries(dir.getValue()).entrySet()) {
+				files.put(new File(dir.getKey(), file.getKey()), file.getValue().toFile());
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return the files in a staging directory by their path relative to it, with / as separator, sorted
+	 */
+	private static Map<String, Path> getEntries(File stagingDir) throws IOException {
+		Map<String, Path> entries = new TreeMap<String, Path>();
+		if (!stagingDir.isDirectory())
+			return entries;
+		Path root = stagingDir.toPath();
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(root)) {
+			paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		for (Path path : paths) {
+			entries.put(root.relativize(path).toString().replace(File.separatorChar, '/'), path);
+		}
+		return entries;
+	}
+
+	@Override
+	public void close() {
+		IO.delete(root);
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+
+/**
+ * PlatformArtifact locates the platform specific companion artifact of this bundle, e.g.
+ * <b>org.eclipse.ecf.bndtools.grpc-1.3.0-linux-x86_64.jar</b>, which holds the binaries for one platform when the
+ * bundle itself is built without them. The artifact is looked for next to this bundle and in the local Maven
+ * repository. It is only downloaded into the local Maven repository if a remote repository is given by the
+ * GRPC_GENERATOR_MAVEN_REPOSITORY environment variable, otherwise a missing artifact is an error that names the
+ * dependency to add. The binaries read from it are verified against the /exe/sha256 index of this bundle when they
+ * are installed in the cache.
+ *
+ * @author slewis
+ *
+ */
+class PlatformArtifact {
+
+	private static final Logger log = LoggerFactory.getLogger(PlatformArtifact.class.getName());
+
+	static final String GROUP_ID = "org.eclipse.ecf";
+	static final String ARTIFACT_ID = "org.eclipse.ecf.bndtools.grpc";
+	static final String POM_PROPERTIES = "/META-INF/maven/" + GROUP_ID + "/" + ARTIFACT_ID + "/pom.properties";
+	static final String MAVEN_REPOSITORY_ENV = "GRPC_GENERATOR_MAVEN_REPOSITORY";
+
+	private static final ConcurrentMap<String, File> artifacts = new ConcurrentHashMap<String, File>();
+
+	/**
+	 * Get the resource from the companion artifact for the given platform
+	 *
+	 * @param resourceName the resource name, e.g. /exe/protoc-linux-x86_64
+	 * @param classifier the platform classifier, e.g. linux-x86_64
+	 * @param exeArtifact the artifact to use, or <code>null</code> to locate it
+	 * @return the resource, or <code>null</code> if the artifact does not have the resource
+	 * @throws IllegalArgumentException if there is no artifact
+	 */
+	static URL getResource(String resourceName, String classifier, File exeArtifact) throws IOException {
+		if (exeArtifact != null && !exeArtifact.isFile())
+			throw new IllegalArgumentException("The exeArtifact=" + exeArtifact.getAbsolutePath() + " does not exist");
+		File artifact = exeArtifact != null ? exeArtifact : getArtifact(classifier);
+		if (artifact == null) {
+			String version = getVersion();
+			throw new IllegalArgumentException("The binaries for " + classifier
+					+ " are not in this bundle. Add the dependency " + GROUP_ID + ":" + ARTIFACT_ID + ":"
+					+ (version != null ? version : "<version>") + ":" + classifier + " next to this bundle or to the "
+					+ "local Maven repository, pass exeArtifact=<jar>, or set " + MAVEN_REPOSITORY_ENV
+					+ " to download it");
+		}
+		try (JarFile jar = new JarFile(artifact)) {
+			if (jar.getEntry(resourceName.substring(1)) == null)
+				return null;
+		}
+		return new URL("jar:" + artifact.toURI() + "!" + resourceName);
+	}
+
+	private static File getArtifact(String classifier) throws IOException {
+		File artifact = artifacts.get(classifier);
+		if (artifact == null) {
+			String version = getVersion();
+			if (version == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("no " + POM_PROPERTIES + " to find the " + classifier + " artifact");
+				}
+				return null;
+			}
+			artifact = findArtifact(version, classifier);
+			if (artifact != null) {
+				artifacts.put(classifier, artifact);
+			}
+		}
+		return artifact;
+	}
+
+	private static String getVersion() throws IOException {
+		URL pom = GrpcGenerator.class.getResource(POM_PROPERTIES);
+		if (pom == null)
+			return null;
+		Properties properties = new Properties();
+		try (InputStream in = pom.openStream()) {
+			properties.load(in);
+		}
+		return properties.getProperty("version");
+	}
+
+	private static File findArtifact(String version, String classifier) throws IOException {
+		String fileName = ARTIFACT_ID + "-" + version + "-" + classifier + ".jar";
+		// next to this bundle
+		File bundle = getBundleFile();
+		if (bundle != null) {
+			File sibling = new File(bundle.getParentFile(), fileName);
+			if (sibling.isFile())
+				return sibling;
+		}
+		// in the local maven repository
+		String path = GROUP_ID.replace('.', '/') + "/" + ARTIFACT_ID + "/" + version + "/" + fileName;
+		String localRepository = System.getProperty("maven.repo.local");
+		File local = IO.getFile(localRepository != null ? IO.getFile(localRepository) : IO.getFile("~/.m2/repository"),
+				path);
+		if (local.isFile())
+			return local;
+		// download into the local maven repository, only if asked to
+		String remoteRepository = System.getenv(MAVEN_REPOSITORY_ENV);
+		if (remoteRepository == null || remoteRepository.trim().isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("no " + local.getAbsolutePath() + " and no " + MAVEN_REPOSITORY_ENV + " to download it from");
+			}
+			return null;
+		}
+		URL remote = new URL(remoteRepository.endsWith("/") ? remoteRepository : remoteRepository + "/");
+		remote = new URL(remote, path);
+		log.info("downloading " + remote + " to " + local.getAbsolutePath());
+		IO.mkdirs(local.getParentFile());
+		Path tmp = Files.createTempFile(local.getParentFile().toPath(), fileName, ExeCache.TMP_SUFFIX);
+		try {
+			IO.copy(remote, tmp.toFile());
+			ExeCache.moveAtomically(tmp, local.toPath());
+		} catch (IOException e) {
+			log.warn("could not download " + remote + ": " + e);
+			return null;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return local;
+	}
+
+	private static File getBundleFile() {
+		try {
+			CodeSource codeSource = GrpcGenerator.class.getProtectionDomain().getCodeSource();
+			if (codeSource == null || !"file".equals(codeSource.getLocation().getProtocol()))
+				return null;
+			File bundle = new File(codeSource.getLocation().toURI());
+			return bundle.isFile() ? bundle : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
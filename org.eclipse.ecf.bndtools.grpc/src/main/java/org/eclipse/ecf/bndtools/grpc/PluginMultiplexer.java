@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+
+/**
+ * PluginMultiplexer runs the protoc plugins for one generation concurrently instead of having protoc run them one
+ * after the other. protoc is run once to write a descriptor set of the proto files and their imports, and the
+ * CodeGeneratorRequest built from it is fed to every plugin from one shared buffer. The CodeGeneratorResponses are
+ * merged in the order of the plugins, as protoc does, and the files are only written if all plugins succeeded.
+ *
+ * @author slewis
+ *
+ */
+class PluginMultiplexer {
+
+	private static final Logger log = LoggerFactory.getLogger(PluginMultiplexer.class.getName());
+
+	// FileDescriptorSet
+	private static final int SET_FILE = 1;
+	// FileDescriptorProto
+	private static final int FILE_NAME = 1;
+	private static final int FILE_SERVICE = 6;
+	// CodeGeneratorRequest
+	private static final int REQUEST_FILE_TO_GENERATE = 1;
+	private static final int REQUEST_PARAMETER = 2;
+	private static final int REQUEST_COMPILER_VERSION = 3;
+	private static final int REQUEST_PROTO_FILE = 15;
+	// Version
+	private static final int VERSION_MAJOR = 1;
+	private static final int VERSION_MINOR = 2;
+	private static final int VERSION_PATCH = 3;
+	private static final int VERSION_SUFFIX = 4;
+	// CodeGeneratorResponse
+	private static final int RESPONSE_ERROR = 1;
+	private static final int RESPONSE_FILE = 15;
+	// CodeGeneratorResponse.File
+	private static final int RESPONSE_FILE_NAME = 1;
+	private static final int RESPONSE_FILE_INSERTION_POINT = 2;
+	private static final int RESPONSE_FILE_CONTENT = 15;
+
+	private static final Pattern PROTOBUF_VERSION = Pattern.compile("^protobuf=(\\d+)\\.(\\d+)\\.(\\d+)",
+			Pattern.MULTILINE);
+
+	/**
+	 * A plugin to run, with the parameter and output directory protoc would give it
+	 */
+	static final class Plugin {
+		final String id;
+		final File exe;
+		final String parameter;
+		final File outDir;
+
+		Plugin(String id, File exe, String parameter, File outDir) {
+			this.id = id;
+			this.exe = exe;
+			this.parameter = parameter;
+			this.outDir = outDir;
+		}
+	}
+
+	private static final class Output {
+		byte[] response;
+		byte[] stderr;
+		int exitCode;
+	}
+
+	private static byte[] compilerVersion;
+
+	private final File cwd;
+	private final List<Plugin> plugins;
+
+	PluginMultiplexer(File cwd, List<Plugin> plugins) {
+		this.cwd = cwd;
+		this.plugins = plugins;
+	}
+
+	/**
+	 * @return the names of the files in the descriptor set, in the order protoc wrote them
+	 */
+	static List<String> getFileNames(byte[] descriptorSet) {
+		List<String> names = new ArrayList<String>();
+		ProtoWire.Reader set = new ProtoWire.Reader(descriptorSet);
+		while (set.next()) {
+			if (set.field == SET_FILE) {
+				ProtoWire.Reader file = set.message();
+				while (file.next()) {
+					if (file.field == FILE_NAME) {
+						names.add(file.string());
+						break;
+					}
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @return the names of the files in the descriptor set that declare at least one service
+	 */
+	static Set<String> getServiceFileNames(byte[] descriptorSet) {
+		Set<String> names = new HashSet<String>();
+		ProtoWire.Reader set = new ProtoWire.Reader(descriptorSet);
+		while (set.next()) {
+			if (set.field == SET_FILE) {
+				ProtoWire.Reader file = set.message();
+				String name = null;
+				boolean service = false;
+				while (file.next()) {
+					if (file.field == FILE_NAME) {
+						name = file.string();
+					} else if (file.field == FILE_SERVICE) {
+						service = true;
+					}
+					if (name != null && service)
+						break;
+				}
+				if (name != null && service) {
+					names.add(name);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Run all plugins for the files to generate and write their files
+	 *
+	 * @param descriptorSet the descriptor set, with imports and source info, written by protoc
+	 * @param filesToGenerate the names of the files to generate, as given in the descriptor set
+	 * @param err receives the error output of the plugins and the errors, as protoc would report them
+	 * @return the exit code, 0 on success
+	 */
+	int run(byte[] descriptorSet, List<String> filesToGenerate, Appendable err) throws Exception {
+		// the part of the request that is the same for all plugins
+		ByteArrayOutputStream shared = new ByteArrayOutputStream(descriptorSet.length + 1024);
+		for (String name : filesToGenerate) {
+			ProtoWire.writeString(shared, REQUEST_FILE_TO_GENERATE, name);
+		}
+		byte[] version = getCompilerVersion();
+		if (version.length > 0) {
+			ProtoWire.writeBytes(shared, REQUEST_COMPILER_VERSION, version);
+		}
+		ProtoWire.Reader set = new ProtoWire.Reader(descriptorSet);
+		while (set.next()) {
+			if (set.field == SET_FILE) {
+				ProtoWire.writeBytes(shared, REQUEST_PROTO_FILE, set.bytes());
+			}
+		}
+		byte[] request = shared.toByteArray();
+		ExecutorService executor = Executors.newFixedThreadPool(plugins.size(), r -> {
+			Thread t = new Thread(r, "GrpcGenerator-plugin");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<Output>> futures = new ArrayList<Future<Output>>();
+		try {
+			for (Plugin plugin : plugins) {
+				futures.add(executor.submit(() -> execute(plugin, request)));
+			}
+			Map<File, byte[]> files = new LinkedHashMap<File, byte[]>();
+			boolean failed = false;
+			for (int i = 0; i < plugins.size(); i++) {
+				Plugin plugin = plugins.get(i);
+				Output output = ExeCache.getResult(futures.get(i));
+				append(err, output.stderr);
+				if (output.exitCode != 0) {
+					err.append("--" + plugin.id + "_out: " + plugin.exe.getName() + ": Plugin failed with status code "
+							+ output.exitCode + ".\n");
+					failed = true;
+				} else if (!merge(plugin, output.response, files, err)) {
+					failed = true;
+				}
+			}
+			if (failed)
+				return 1;
+			for (Map.Entry<File, byte[]> file : files.entrySet()) {
+				IO.mkdirs(file.getKey().getParentFile());
+				Files.write(file.getKey().toPath(), file.getValue());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("wrote " + files.size() + " files for " + plugins.size() + " plugins");
+			}
+			return 0;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * protoc gives the version of its C++ runtime to the plugins, which is 4.x for protobuf 22 and later, e.g. 4.22.2
+	 * for protobuf 3.22.2 as listed in /exe/versions.
+	 *
+	 * @return the Version message, empty if the protobuf version is not known
+	 */
+	static synchronized byte[] getCompilerVersion() throws IOException {
+		if (compilerVersion == null) {
+			ByteArrayOutputStream version = new ByteArrayOutputStream();
+			URL versions = GrpcGenerator.class.getResource(ExeCache.EXE_VERSIONS);
+			Matcher m = versions != null ? PROTOBUF_VERSION.matcher(IO.collect(versions)) : null;
+			if (m != null && m.find()) {
+				int minor = Integer.parseInt(m.group(2));
+				writeVersion(version, minor >= 22 ? 4 : Integer.parseInt(m.group(1)), minor,
+						Integer.parseInt(m.group(3)));
+			}
+			compilerVersion = version.toByteArray();
+		}
+		return compilerVersion;
+	}
+
+	private static void writeVersion(ByteArrayOutputStream out, int major, int minor, int patch) {
+		ProtoWire.writeTag(out, VERSION_MAJOR, ProtoWire.VARINT);
+		ProtoWire.writeVarint(out, major);
+		ProtoWire.writeTag(out, VERSION_MINOR, ProtoWire.VARINT);
+		ProtoWire.writeVarint(out, minor);
+		ProtoWire.writeTag(out, VERSION_PATCH, ProtoWire.VARINT);
+		ProtoWire.writeVarint(out, patch);
+		ProtoWire.writeString(out, VERSION_SUFFIX, "");
+	}
+
+	private Output execute(Plugin plugin, byte[] request) throws Exception {
+		ProcessBuilder pb = new ProcessBuilder(plugin.exe.getAbsolutePath());
+		pb.directory(cwd);
+		Process process = pb.start();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		Thread errReader = copyInBackground(process.getErrorStream(), stderr);
+		Thread writer = new Thread(() -> {
+			try (OutputStream in = process.getOutputStream()) {
+				if (plugin.parameter != null && !plugin.parameter.isEmpty()) {
+					ByteArrayOutputStream parameter = new ByteArrayOutputStream();
+					ProtoWire.writeString(parameter, REQUEST_PARAMETER, plugin.parameter);
+					parameter.writeTo(in);
+				}
+				in.write(request);
+			} catch (IOException e) {
+				// the plugin exited before reading all input, its exit code tells why
+				if (log.isDebugEnabled()) {
+					log.debug("could not write request to " + plugin.id + ": " + e);
+				}
+			}
+		}, "GrpcGenerator-plugin-input");
+		writer.setDaemon(true);
+		writer.start();
+		Output output = new Output();
+		output.response = IO.read(process.getInputStream());
+		output.exitCode = process.waitFor();
+		writer.join();
+		errReader.join();
+		output.stderr = stderr.toByteArray();
+		return output;
+	}
+
+	private static Thread copyInBackground(InputStream in, OutputStream out) {
+		Thread t = new Thread(() -> {
+			try {
+				IO.copy(in, out);
+			} catch (IOException e) {
+				// the process is gone
+			}
+		}, "GrpcGenerator-plugin-stderr");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Merge the files of the response into files, applying insertion points as protoc does
+	 *
+	 * @return false if the plugin reported an error or wrote a file that was already written
+	 */
+	static boolean merge(Plugin plugin, byte[] response, Map<File, byte[]> files, Appendable err)
+			throws IOException {
+		ProtoWire.Reader reader = new ProtoWire.Reader(response);
+		List<ProtoWire.Reader> responseFiles = new ArrayList<ProtoWire.Reader>();
+		while (reader.next()) {
+			if (reader.field == RESPONSE_ERROR) {
+				err.append("--" + plugin.id + "_out: " + reader.string() + "\n");
+				return false;
+			} else if (reader.field == RESPONSE_FILE) {
+				responseFiles.add(reader.message());
+			}
+		}
+		String fileName = null;
+		for (ProtoWire.Reader file : responseFiles) {
+			String name = null;
+			String insertionPoint = null;
+			byte[] content = new byte[0];
+			while (file.next()) {
+				switch (file.field) {
+				case RESPONSE_FILE_NAME:
+					name = file.string();
+					break;
+				case RESPONSE_FILE_INSERTION_POINT:
+					insertionPoint = file.string();
+					break;
+				case RESPONSE_FILE_CONTENT:
+					content = file.bytes();
+					break;
+				default:
+					break;
+				}
+			}
+			// a file without a name continues the previous one
+			if (name == null || name.isEmpty()) {
+				if (fileName == null)
+					throw new IllegalArgumentException(plugin.id + " returned a file without a name");
+				File target = new File(plugin.outDir, fileName);
+				files.put(target, concat(files.get(target), content));
+				continue;
+			}
+			fileName = name;
+			File target = getTarget(plugin, name);
+			if (insertionPoint == null || insertionPoint.isEmpty()) {
+				if (files.putIfAbsent(target, content) != null) {
+					err.append(name + ": Tried to write the same file twice.\n");
+					return false;
+				}
+			} else {
+				byte[] into = files.get(target);
+				if (into == null) {
+					if (!target.isFile()) {
+						err.append("--" + plugin.id + "_out: " + name + ": Tried to insert into file that doesn't exist.\n");
+						return false;
+					}
+					into = IO.read(target);
+				}
+				byte[] inserted = insert(into, insertionPoint, content);
+				if (inserted == null) {
+					err.append("--" + plugin.id + "_out: " + name + ": insertion point \"" + insertionPoint
+							+ "\" not found.\n");
+					return false;
+				}
+				files.put(target, inserted);
+			}
+		}
+		return true;
+	}
+
+	private static File getTarget(Plugin plugin, String name) {
+		if (name.startsWith("/") || name.contains("\\") || name.equals("..") || name.startsWith("../")
+				|| name.contains("/../") || name.endsWith("/.."))
+			throw new IllegalArgumentException(plugin.id + " returned an invalid file name " + name);
+		return new File(plugin.outDir, name);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		if (a == null)
+			return b;
+		byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * Insert the content before the line with the insertion point, indented like that line
+	 *
+	 * @return the new file content, or <code>null</code> if there is no such insertion point
+	 */
+	static byte[] insert(byte[] into, String insertionPoint, byte[] content) {
+		String target = new String(into, StandardCharsets.UTF_8);
+		int pos = target.indexOf("@@protoc_insertion_point(" + insertionPoint + ")");
+		if (pos < 0)
+			return null;
+		int lineStart = target.lastIndexOf('\n', pos) + 1;
+		int indentEnd = lineStart;
+		while (indentEnd < target.length() && (target.charAt(indentEnd) == ' ' || target.charAt(indentEnd) == '\t')) {
+			indentEnd++;
+		}
+		String indent = target.substring(lineStart, indentEnd);
+		String data = new String(content, StandardCharsets.UTF_8);
+		StringBuilder sb = new StringBuilder(target.length() + data.length());
+		sb.append(target, 0, lineStart);
+		if (indent.isEmpty()) {
+			sb.append(data);
+		} else {
+			for (String line : data.split("(?<=\n)")) {
+				// no indent for empty lines
+				if (!line.equals("\n")) {
+					sb.append(indent);
+				}
+				sb.append(line);
+			}
+		}
+		sb.append(target, lineStart, target.length());
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void append(Appendable err, byte[] bytes) throws IOException {
+		for (byte b : bytes) {
+			err.append((char) (b & 0xff));
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import aQute.lib.io.IO;
+
+/**
+ * ProtoGraph is the import graph of the input files of a generation. The import statements and service declarations
+ * of every proto file are found in its tokens, so that comments and string literals are never taken for them, and the
+ * imported files are resolved through the proto paths, as protoc does. The graph is used to split the
+ * inputs into shards that can be generated by separate protoc processes, and to find the inputs that declare
+ * services, for which the service plugins have to run.
+ *
+ * @author slewis
+ *
+ */
+class ProtoGraph {
+
+	/**
+	 * The first character of a string literal token
+	 */
+	static final char STRING = '"';
+	/**
+	 * The cost of a service relative to a byte of proto, as every service is generated by all plugins
+	 */
+	static final long SERVICE_COST = 4096L;
+
+	private static final class Node {
+		final File file;
+		final List<String> imports = new ArrayList<String>();
+		long cost;
+		int services;
+
+		Node(File file) {
+			this.file = file;
+		}
+	}
+
+	private final ProtocArguments protocArguments;
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final Map<String, String> inputs = new LinkedHashMap<String, String>();
+
+	/**
+	 * Read the inputs and everything they import
+	 *
+	 * @throws IllegalArgumentException if an input is not in a proto path
+	 */
+	ProtoGraph(ProtocArguments protocArguments) throws IOException {
+		this.protocArguments = protocArguments;
+		for (String input : protocArguments.getInputs()) {
+			String name = protocArguments.getProtoName(input);
+			if (name == null)
+				throw new IllegalArgumentException("Input " + input + " is not in any proto path");
+			inputs.put(input, name);
+			load(name);
+		}
+	}
+
+	private Node load(String name) throws IOException {
+		if (nodes.containsKey(name))
+			return nodes.get(name);
+		File file = resolve(name);
+		Node node = file == null ? null : new Node(file);
+		// also remember what could not be resolved, e.g. the well known types inside protoc
+		nodes.put(name, node);
+		if (node != null) {
+			List<String> tokens = tokenize(IO.collect(file));
+			for (int i = 0; i < tokens.size(); i++) {
+				String token = tokens.get(i);
+				if (token.equals("import")) {
+					// import [public|weak] "name";
+					int j = i + 1;
+					String imported = get(tokens, j);
+					if (imported.equals("public") || imported.equals("weak")) {
+						imported = get(tokens, ++j);
+					}
+					if (isString(imported) && get(tokens, j + 1).equals(";")) {
+						node.imports.add(imported.substring(1));
+					}
+				} else if (token.equals("service") && isIdentifier(get(tokens, i + 1))
+						&& get(tokens, i + 2).equals("{")) {
+					// service Name {
+					node.services++;
+				}
+			}
+			node.cost = file.length() + node.services * SERVICE_COST;
+			for (String imported : node.imports) {
+				load(imported);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Split proto source into tokens as the protoc tokenizer does. Comments are dropped. A string literal is one token
+	 * that starts with {@link #STRING} followed by its unescaped text, and adjacent string literals are joined into
+	 * one. Identifiers, keywords and numbers are a token each, as is every other character that is not whitespace.
+	 */
+	static List<String> tokenize(String content) {
+		List<String> tokens = new ArrayList<String>();
+		int length = content.length();
+		boolean afterString = false;
+		int i = 0;
+		while (i < length) {
+			char c = content.charAt(i);
+			if (c == '/' && i + 1 < length && content.charAt(i + 1) == '/') {
+				while (i < length && content.charAt(i) != '\n') {
+					i++;
+				}
+			} else if (c == '/' && i + 1 < length && content.charAt(i + 1) == '*') {
+				int end = content.indexOf("*/", i + 2);
+				i = end < 0 ? length : end + 2;
+			} else if (c == '"' || c == '\'') {
+				StringBuilder sb = new StringBuilder();
+				i++;
+				while (i < length && content.charAt(i) != c && content.charAt(i) != '\n') {
+					if (content.charAt(i) == '\\' && i + 1 < length) {
+						i++;
+					}
+					sb.append(content.charAt(i++));
+				}
+				i++;
+				if (afterString) {
+					tokens.set(tokens.size() - 1, tokens.get(tokens.size() - 1) + sb);
+				} else {
+					tokens.add(STRING + sb.toString());
+				}
+				afterString = true;
+			} else if (isWordChar(c)) {
+				int start = i;
+				while (i < length && isWordChar(content.charAt(i))) {
+					i++;
+				}
+				tokens.add(content.substring(start, i));
+				afterString = false;
+			} else {
+				if (!Character.isWhitespace(c)) {
+					tokens.add(String.valueOf(c));
+					afterString = false;
+				}
+				i++;
+			}
+		}
+		return tokens;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+	}
+
+	private static String get(List<String> tokens, int i) {
+		return i < tokens.size() ? tokens.get(i) : "";
+	}
+
+	private static boolean isString(String token) {
+		return !token.isEmpty() && token.charAt(0) == STRING;
+	}
+
+	private static boolean isIdentifier(String token) {
+		return !token.isEmpty() && (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_');
+	}
+
+	private File resolve(String name) {
+		for (String protoPath : protocArguments.getProtoPaths()) {
+			File file = IO.getFile(IO.getFile(protocArguments.getWorkingDirectory(), protoPath), name);
+			if (file.isFile())
+				return file;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the proto name of every input, in the order of the inputs
+	 */
+	Map<String, String> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * @return the file of the proto name, or <code>null</code> if it is not in any proto path
+	 */
+	File getFile(String name) {
+		Node node = nodes.get(name);
+		return node == null ? null : node.file;
+	}
+
+	/**
+	 * @return the names of all files the named file imports, directly or indirectly, in a stable order
+	 */
+	Set<String> getTransitiveImports(String name) {
+		Set<String> result = new LinkedHashSet<String>();
+		collect(name, result);
+		result.remove(name);
+		return result;
+	}
+
+	private void collect(String name, Set<String> result) {
+		if (!result.add(name))
+			return;
+		Node node = nodes.get(name);
+		if (node != null) {
+			for (String imported : node.imports) {
+				collect(imported, result);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the named file declares no services, true if it does or it is not in any proto path
+	 */
+	boolean hasServices(String name) {
+		Node node = nodes.get(name);
+		return node == null || node.services > 0;
+	}
+
+	/**
+	 * @return the estimated cost to generate the named file
+	 */
+	long getCost(String name) {
+		Node node = nodes.get(name);
+		return node == null ? 0L : node.cost;
+	}
+
+	/**
+	 * Split the inputs into at most the given number of shards of about the same cost. Inputs that depend on each
+	 * other are kept in one shard, so that shared imports are parsed once, unless that group alone is more than a
+	 * shard's share, in which case its inputs are spread as well. Every shard lists its inputs in the original order.
+	 *
+	 * @return the inputs of every non empty shard
+	 */
+	List<List<String>> shard(int count) {
+		List<String> inputList = new ArrayList<String>(inputs.keySet());
+		// union find over the inputs, joining inputs where one depends on the other
+		int[] parent = new int[inputList.size()];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		Map<String, Integer> byName = new HashMap<String, Integer>();
+		for (int i = 0; i < inputList.size(); i++) {
+			byName.put(inputs.get(inputList.get(i)), i);
+		}
+		for (int i = 0; i < inputList.size(); i++) {
+			for (String imported : getTransitiveImports(inputs.get(inputList.get(i)))) {
+				Integer j = byName.get(imported);
+				if (j != null) {
+					parent[find(parent, i)] = find(parent, j);
+				}
+			}
+		}
+		Map<Integer, List<Integer>> groups = new LinkedHashMap<Integer, List<Integer>>();
+		long total = 0L;
+		for (int i = 0; i < inputList.size(); i++) {
+			groups.computeIfAbsent(find(parent, i), k -> new ArrayList<Integer>()).add(i);
+			total += getCost(inputs.get(inputList.get(i)));
+		}
+		long share = total / count + 1;
+		List<List<Integer>> units = new ArrayList<List<Integer>>();
+		for (List<Integer> group : groups.values()) {
+			if (cost(group, inputList) > share) {
+				for (Integer i : group) {
+					units.add(Collections.singletonList(i));
+				}
+			} else {
+				units.add(group);
+			}
+		}
+		// longest processing time first: the most expensive unit goes to the cheapest shard
+		units.sort((a, b) -> Long.compare(cost(b, inputList), cost(a, inputList)));
+		List<List<Integer>> shards = new ArrayList<List<Integer>>();
+		long[] loads = new long[Math.min(count, units.size())];
+		for (int i = 0; i < loads.length; i++) {
+			shards.add(new ArrayList<Integer>());
+		}
+		for (List<Integer> unit : units) {
+			int cheapest = 0;
+			for (int i = 1; i < loads.length; i++) {
+				if (loads[i] < loads[cheapest]) {
+					cheapest = i;
+				}
+			}
+			shards.get(cheapest).addAll(unit);
+			loads[cheapest] += cost(unit, inputList);
+		}
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (List<Integer> shard : shards) {
+			Collections.sort(shard);
+			List<String> shardInputs = new ArrayList<String>();
+			for (Integer i : shard) {
+				shardInputs.add(inputList.get(i));
+			}
+			result.add(shardInputs);
+		}
+		return result;
+	}
+
+	private long cost(Collection<Integer> unit, List<String> inputList) {
+		long cost = 0L;
+		for (Integer i : unit) {
+			cost += getCost(inputs.get(inputList.get(i)));
+		}
+		// every unit costs something, even if its files are empty
+		return cost + 1;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ProtoWire reads and writes the protocol buffers wire format, just enough to handle descriptor sets and the protoc
+ * plugin messages without depending on protobuf-java. Messages are read field by field with a {@link Reader}, and
+ * nested messages are kept as bytes unless they are needed.
+ *
+ * @author slewis
+ *
+ */
+final class ProtoWire {
+
+	static final int VARINT = 0;
+	static final int FIXED64 = 1;
+	static final int LENGTH_DELIMITED = 2;
+	static final int FIXED32 = 5;
+
+	private ProtoWire() {
+	}
+
+	/**
+	 * Reads the fields of a message one after the other
+	 */
+	static final class Reader {
+		private final byte[] buffer;
+		private final int limit;
+		private int position;
+		private int fieldStart;
+		int field;
+		int wireType;
+		long value;
+		int offset;
+		int length;
+
+		Reader(byte[] buffer) {
+			this(buffer, 0, buffer.length);
+		}
+
+		Reader(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.limit = offset + length;
+		}
+
+		/**
+		 * Read the next field
+		 *
+		 * @return false if there are no more fields
+		 */
+		boolean next() {
+			if (position >= limit)
+				return false;
+			fieldStart = position;
+			long tag = readVarint();
+			field = (int) (tag >>> 3);
+			wireType = (int) (tag & 7);
+			switch (wireType) {
+			case VARINT:
+				value = readVarint();
+				break;
+			case FIXED64:
+				skip(8);
+				break;
+			case LENGTH_DELIMITED:
+				length = (int) readVarint();
+				offset = position;
+				skip(length);
+				break;
+			case FIXED32:
+				skip(4);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported wire type " + wireType + " for field " + field);
+			}
+			return true;
+		}
+
+		private void skip(int n) {
+			if (n < 0 || position + n > limit)
+				throw new IllegalArgumentException("Truncated message");
+			position += n;
+		}
+
+		private long readVarint() {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= limit)
+					throw new IllegalArgumentException("Truncated message");
+				byte b = buffer[position++];
+				result |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return result;
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		/**
+		 * @return the content of the current length delimited field
+		 */
+		byte[] bytes() {
+			return Arrays.copyOfRange(buffer, offset, offset + length);
+		}
+
+		String string() {
+			return new String(buffer, offset, length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return a reader for the current length delimited field
+		 */
+		Reader message() {
+			return new Reader(buffer, offset, length);
+		}
+
+		/**
+		 * @return the values of the current repeated varint field, packed or not
+		 */
+		List<Long> varints() {
+			List<Long> values = new ArrayList<Long>();
+			if (wireType == VARINT) {
+				values.add(value);
+			} else {
+				Reader packed = message();
+				while (packed.position < packed.limit) {
+					values.add(packed.readVarint());
+				}
+			}
+			return values;
+		}
+
+		/**
+		 * Copy the current field, tag included, as it is
+		 */
+		void copyField(ByteArrayOutputStream out) {
+			out.write(buffer, fieldStart, position - fieldStart);
+		}
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+		writeVarint(out, ((long) field << 3) | wireType);
+	}
+
+	static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+		writeTag(out, field, LENGTH_DELIMITED);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static void writeString(ByteArrayOutputStream out, int field, String value) {
+		writeBytes(out, field, value.getBytes(StandardCharsets.UTF_8));
+	}
+}
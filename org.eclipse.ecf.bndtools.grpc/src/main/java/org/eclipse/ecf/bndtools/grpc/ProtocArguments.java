@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import aQute.lib.io.IO;
+
+/**
+ * ProtocArguments splits the protoc arguments of a {@link GenerationRequest} into the proto paths, the input files,
+ * the --&lt;plugin&gt;_opt options for the plugins of this generator, and the other options, so that a generation can
+ * run protoc with changed arguments.
+ *
+ * @author slewis
+ *
+ */
+class ProtocArguments {
+
+	private final File cwd;
+	private final List<String> args;
+	private final Set<Integer> inputIndexes = new HashSet<Integer>();
+	private final List<String> protoPaths = new ArrayList<String>();
+	private final List<String> inputs = new ArrayList<String>();
+	private final List<String> options = new ArrayList<String>();
+	private final Map<String, List<String>> pluginOptions = new LinkedHashMap<String, List<String>>();
+	private boolean supported = true;
+
+	/**
+	 * @param cwd the directory protoc runs in
+	 * @param args the protoc arguments
+	 * @param pluginIds the ids of the plugins whose --&lt;id&gt;_opt options are taken out of the arguments
+	 */
+	ProtocArguments(File cwd, List<String> args, Collection<String> pluginIds) {
+		this.cwd = cwd;
+		this.args = args;
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (arg.equals("-I") || arg.equals("--proto_path")) {
+				if (i + 1 < args.size()) {
+					protoPaths.add(args.get(++i));
+				}
+			} else if (arg.startsWith("--proto_path=")) {
+				protoPaths.add(arg.substring("--proto_path=".length()));
+			} else if (arg.startsWith("-I")) {
+				protoPaths.add(arg.startsWith("-I=") ? arg.substring(3) : arg.substring(2));
+			} else if (arg.startsWith("-") && getPluginOption(arg, pluginIds) != null) {
+				String id = getPluginOption(arg, pluginIds);
+				String option = arg.substring(("--" + id + "_opt=").length());
+				pluginOptions.computeIfAbsent(id, k -> new ArrayList<String>()).add(option);
+			} else if (arg.startsWith("@") || arg.startsWith("--descriptor_set_out") || arg.startsWith("-o")) {
+				// argument files and descriptor set outputs can't be combined with changed arguments
+				supported = false;
+				options.add(arg);
+			} else if (arg.startsWith("-")) {
+				options.add(arg);
+			} else {
+				inputIndexes.add(i);
+				inputs.add(arg);
+			}
+		}
+	}
+
+	private static String getPluginOption(String arg, Collection<String> pluginIds) {
+		for (String id : pluginIds) {
+			if (arg.startsWith("--" + id + "_opt="))
+				return id;
+		}
+		return null;
+	}
+
+	File getWorkingDirectory() {
+		return cwd;
+	}
+
+	/**
+	 * @return false if the arguments use options that can't be combined with changed arguments
+	 */
+	boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * @return the proto paths, or the working directory if none are given, as protoc does
+	 */
+	List<String> getProtoPaths() {
+		return protoPaths.isEmpty() ? Collections.singletonList(".") : protoPaths;
+	}
+
+	List<String> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * @return the options other than proto paths, inputs and plugin options
+	 */
+	List<String> getOptions() {
+		return options;
+	}
+
+	/**
+	 * @return the options that change how protoc parses the proto files, without outputs and plugins
+	 */
+	List<String> getParseOptions() {
+		List<String> parseOptions = new ArrayList<String>();
+		for (String option : options) {
+			if (!option.contains("_out") && !option.contains("_opt") && !option.startsWith("--plugin")) {
+				parseOptions.add(option);
+			}
+		}
+		return parseOptions;
+	}
+
+	/**
+	 * @return true if protoc takes proto files from a descriptor set given by --descriptor_set_in
+	 */
+	boolean hasDescriptorSetIn() {
+		for (String option : options) {
+			if (option.startsWith("--descriptor_set_in"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the values of the --&lt;id&gt;_opt options for the plugin, in order
+	 */
+	List<String> getPluginOptions(String id) {
+		List<String> values = pluginOptions.get(id);
+		return values == null ? Collections.<String> emptyList() : values;
+	}
+
+	/**
+	 * @return the values of the --&lt;id&gt;_opt options of all plugins, by plugin id
+	 */
+	Map<String, List<String>> getPluginOptions() {
+		return pluginOptions;
+	}
+
+	/**
+	 * @return the arguments without the plugin options
+	 */
+	List<String> getArguments() {
+		List<String> args = new ArrayList<String>();
+		for (String protoPath : protoPaths) {
+			args.add("--proto_path=" + protoPath);
+		}
+		args.addAll(options);
+		args.addAll(inputs);
+		return args;
+	}
+
+	/**
+	 * @return the original arguments, plugin options included, with only the given inputs
+	 */
+	List<String> getArguments(Collection<String> selectedInputs) {
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < args.size(); i++) {
+			if (!inputIndexes.contains(i) || selectedInputs.contains(args.get(i))) {
+				result.add(args.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param selectedProtoPaths the proto paths to keep
+	 * @param addedOptions options to add to the other options
+	 * @return the arguments, plugin options included, with only the given proto paths
+	 */
+	List<String> getArguments(Collection<String> selectedProtoPaths, List<String> addedOptions) {
+		List<String> result = new ArrayList<String>();
+		for (String protoPath : protoPaths) {
+			if (selectedProtoPaths.contains(protoPath)) {
+				result.add("--proto_path=" + protoPath);
+			}
+		}
+		result.addAll(options);
+		result.addAll(addedOptions);
+		addPluginOptions(result);
+		result.addAll(inputs);
+		return result;
+	}
+
+	/**
+	 * @param descriptorSet a descriptor set with the proto files and all their imports
+	 * @param names the names of the proto files in the descriptor set to generate
+	 * @return the arguments, plugin options included, that take the proto files from the descriptor set only
+	 */
+	List<String> getArguments(File descriptorSet, List<String> names) {
+		List<String> result = new ArrayList<String>();
+		for (String option : options) {
+			if (!option.startsWith("--descriptor_set_in")) {
+				result.add(option);
+			}
+		}
+		result.add("--descriptor_set_in=" + descriptorSet.getAbsolutePath());
+		addPluginOptions(result);
+		result.addAll(names);
+		return result;
+	}
+
+	private void addPluginOptions(List<String> result) {
+		for (Map.Entry<String, List<String>> entry : pluginOptions.entrySet()) {
+			for (String value : entry.getValue()) {
+				result.add("--" + entry.getKey() + "_opt=" + value);
+			}
+		}
+	}
+
+	/**
+	 * The name protoc gives an input file: an input that is a file on disk is made relative to the proto path that
+	 * contains it, else it is already a name relative to the proto paths.
+	 *
+	 * @return the name, or <code>null</code> if the file is not in any proto path
+	 */
+	String getProtoName(String input) throws IOException {
+		File file = IO.getFile(cwd, input);
+		if (!file.isFile())
+			return input.replace(File.separatorChar, '/');
+		String path = file.getCanonicalPath();
+		for (String protoPath : getProtoPaths()) {
+			String root = IO.getFile(cwd, protoPath).getCanonicalPath();
+			if (!root.endsWith(File.separator)) {
+				root += File.separator;
+			}
+			if (path.startsWith(root))
+				return path.substring(root.length()).replace(File.separatorChar, '/');
+		}
+		return null;
+	}
+
+	/**
+	 * The value of an --&lt;id&gt;_out option, which may start with parameters, e.g. lite:src-gen
+	 *
+	 * @return the parameters and the directory
+	 */
+	static String[] splitOut(String out) {
+		int colon = out.indexOf(':');
+		// a windows path like C:\src-gen has no parameters
+		boolean windowsPath = colon == 1 && out.length() > 2 && Character.isLetter(out.charAt(0))
+				&& (out.charAt(2) == '\\' || out.charAt(2) == '/');
+		if (colon < 0 || windowsPath)
+			return new String[] {
+					"", out
+			};
+		return new String[] {
+				out.substring(0, colon), out.substring(colon + 1)
+		};
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.lib.io.IO;
+
+public class CachePrunerTest {
+
+	private File cacheDir;
+	private File oldest;
+	private File older;
+	private File newest;
+
+	@Before
+	public void setUp() throws Exception {
+		cacheDir = Files.createTempDirectory("CachePrunerTest").toFile();
+		long now = System.currentTimeMillis();
+		// created in another order than they were used
+		newest = entry('c', now - TimeUnit.HOURS.toMillis(1));
+		oldest = entry('a', now - TimeUnit.HOURS.toMillis(3));
+		older = entry('b', now - TimeUnit.HOURS.toMillis(2));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		IO.delete(cacheDir);
+	}
+
+	@Test
+	public void testPruneLeastRecentlyUsed() throws Exception {
+		new CachePruner(cacheDir, 250L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertFalse(oldest.exists());
+		assertTrue(older.isDirectory());
+		assertTrue(newest.isDirectory());
+
+		new CachePruner(cacheDir, 150L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertFalse(older.exists());
+		assertTrue(newest.isDirectory());
+	}
+
+	@Test
+	public void testNothingToPrune() throws Exception {
+		new CachePruner(cacheDir, 300L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertTrue(oldest.isDirectory());
+		assertTrue(older.isDirectory());
+		assertTrue(newest.isDirectory());
+	}
+
+	@Test
+	public void testUsedEntryIsKept() throws Exception {
+		// a record that is touched makes its entry the most recently used
+		File record = new File(oldest, "protoc" + ExeCache.RECORD_SUFFIX);
+		CachePruner.touch(record);
+		new CachePruner(cacheDir, 250L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertTrue(oldest.isDirectory());
+		assertFalse(older.exists());
+
+		// an entry in use is skipped, the next one is deleted instead
+		new CachePruner(cacheDir, 150L, ExeCache.RECORD_SUFFIX).prune(Collections.singleton(newest));
+		assertTrue(newest.isDirectory());
+		assertFalse(oldest.exists());
+	}
+
+	@Test
+	public void testEntryLockedByUserIsKept() throws Exception {
+		// a process using the entry holds a shared lock on it
+		File lock = new File(oldest, "protoc" + ExeCache.LOCK_SUFFIX);
+		try (FileChannel channel = FileChannel.open(lock.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			channel.lock(0L, Long.MAX_VALUE, true);
+			new CachePruner(cacheDir, 250L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+			assertTrue(oldest.isDirectory());
+			assertFalse(older.exists());
+		}
+		new CachePruner(cacheDir, 150L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertFalse(oldest.exists());
+		assertTrue(newest.isDirectory());
+	}
+
+	@Test
+	public void testOtherFilesAreIgnored() throws Exception {
+		File other = new File(cacheDir, "not-an-entry");
+		IO.mkdirs(other);
+		Files.write(new File(other, "data" + ExeCache.RECORD_SUFFIX).toPath(), new byte[1000]);
+		// an entry without a record may be being installed
+		File installing = new File(cacheDir, name('d'));
+		IO.mkdirs(installing);
+		Files.write(new File(installing, "protoc").toPath(), new byte[1000]);
+		installing.setLastModified(0L);
+
+		new CachePruner(cacheDir, 300L, ExeCache.RECORD_SUFFIX).prune(Collections.<File> emptySet());
+		assertTrue(other.isDirectory());
+		assertTrue(installing.isDirectory());
+		assertTrue(oldest.isDirectory());
+	}
+
+	@Test
+	public void testIsDue() throws Exception {
+		CachePruner pruner = new CachePruner(cacheDir, 300L, ExeCache.RECORD_SUFFIX);
+		assertTrue(pruner.isDue());
+		pruner.prune(Collections.<File> emptySet());
+		assertFalse(pruner.isDue());
+		assertEquals("300", IO.collect(new File(cacheDir, CachePruner.PRUNED_MARKER)));
+	}
+
+	@Test
+	public void testParseSize() {
+		assertEquals(1048576L, CachePruner.parseSize("1048576"));
+		assertEquals(512L * 1024, CachePruner.parseSize("512k"));
+		assertEquals(256L * 1024 * 1024, CachePruner.parseSize(" 256M "));
+		assertEquals(2L * 1024 * 1024 * 1024, CachePruner.parseSize("2g"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseInvalidSize() {
+		CachePruner.parseSize("lots");
+	}
+
+	/**
+	 * An entry of 100 bytes with a record that was last used at the given time
+	 */
+	private File entry(char c, long accessed) throws Exception {
+		File dir = new File(cacheDir, name(c));
+		IO.mkdirs(dir);
+		Files.write(new File(dir, "protoc").toPath(), new byte[100]);
+		File record = new File(dir, "protoc" + ExeCache.RECORD_SUFFIX);
+		IO.store("", record);
+		assertTrue(record.setLastModified(accessed));
+		return dir;
+	}
+
+	private static String name(char c) {
+		return String.join("", Collections.nCopies(64, String.valueOf(c)));
+	}
+}
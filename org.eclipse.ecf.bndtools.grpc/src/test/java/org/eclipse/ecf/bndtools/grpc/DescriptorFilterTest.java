@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DescriptorFilterTest {
+
+	// FileDescriptorSet
+	private static final int SET_FILE = 1;
+	// FileDescriptorProto
+	private static final int FILE_NAME = 1;
+	private static final int FILE_PACKAGE = 2;
+	private static final int FILE_MESSAGE = 4;
+	private static final int FILE_ENUM = 5;
+	private static final int FILE_SERVICE = 6;
+	private static final int FILE_SOURCE_INFO = 9;
+	// DescriptorProto, EnumDescriptorProto, ServiceDescriptorProto and MethodDescriptorProto
+	private static final int NAME = 1;
+	private static final int MESSAGE_FIELD = 2;
+	private static final int FIELD_TYPE_NAME = 6;
+	private static final int SERVICE_METHOD = 2;
+	private static final int METHOD_INPUT = 2;
+	private static final int METHOD_OUTPUT = 3;
+	// SourceCodeInfo and SourceCodeInfo.Location
+	private static final int SOURCE_LOCATION = 1;
+	private static final int LOCATION_PATH = 1;
+	private static final int LOCATION_LEADING_COMMENTS = 3;
+
+	private static final String SHOP = "acme/shop.proto";
+	private static final String OTHER = "acme/other.proto";
+
+	@Test
+	public void testInclude() {
+		byte[] filtered = filter(Collections.singletonList("acme.Shop.Buy"), Collections.<String> emptyList());
+		byte[] shop = getFile(filtered, SHOP);
+		assertEquals(Arrays.asList("message Order", "message Money", "service Shop"), getElements(shop));
+		assertEquals(Collections.singletonList("Buy"), getMethods(shop, 0));
+		Map<String, String> comments = new LinkedHashMap<String, String>();
+		comments.put("[2]", "package");
+		comments.put("[4, 0]", "Order");
+		comments.put("[4, 1]", "Money");
+		comments.put("[6, 0]", "Shop");
+		comments.put("[6, 0, 2, 0]", "Buy");
+		assertEquals(comments, getComments(shop));
+	}
+
+	@Test
+	public void testExcludeRenumbersSourceInfo() {
+		byte[] filtered = filter(Collections.<String> emptyList(), Collections.singletonList("acme.Shop"));
+		byte[] shop = getFile(filtered, SHOP);
+		assertEquals(Arrays.asList("message Order", "message Money", "message Unused", "enum Status", "service Admin"),
+				getElements(shop));
+		assertEquals(Collections.singletonList("Reset"), getMethods(shop, 0));
+		Map<String, String> comments = getComments(shop);
+		assertEquals("Admin", comments.get("[6, 0]"));
+		assertEquals("Reset", comments.get("[6, 0, 2, 0]"));
+		assertEquals("Status", comments.get("[5, 0]"));
+		assertEquals(7, comments.size());
+	}
+
+	@Test
+	public void testExcludedMethod() {
+		byte[] filtered = filter(Collections.<String> emptyList(), Arrays.asList("acme.Shop.Buy", "acme.Admin*"));
+		byte[] shop = getFile(filtered, SHOP);
+		assertEquals(Collections.singletonList("Cancel"), getMethods(shop, 0));
+		Map<String, String> comments = getComments(shop);
+		assertEquals("Cancel", comments.get("[6, 0, 2, 0]"));
+		assertNull(comments.get("[6, 1]"));
+	}
+
+	@Test
+	public void testReferencedTypeIsKept() {
+		byte[] filtered = filter(Collections.singletonList("acme.Shop.Buy"), Collections.singletonList("acme.Money"));
+		assertEquals(Arrays.asList("message Order", "message Money", "service Shop"),
+				getElements(getFile(filtered, SHOP)));
+	}
+
+	@Test
+	public void testOtherFilesAreKept() {
+		byte[] set = descriptorSet();
+		byte[] filtered = new DescriptorFilter(Collections.singletonList("acme.Shop.Buy"),
+				Collections.<String> emptyList()).filter(set, Collections.singletonList(SHOP));
+		assertArrayEquals(getFile(set, OTHER), getFile(filtered, OTHER));
+		// without filtering the files to generate are kept as they are as well
+		filtered = new DescriptorFilter(Collections.<String> emptyList(), Collections.<String> emptyList()).filter(set,
+				Collections.singletonList(SHOP));
+		assertArrayEquals(set, filtered);
+	}
+
+	private static byte[] filter(List<String> includes, List<String> excludes) {
+		return new DescriptorFilter(includes, excludes).filter(descriptorSet(), Collections.singletonList(SHOP));
+	}
+
+	/**
+	 * The descriptor set of
+	 *
+	 * <pre>
+	 * package acme;
+	 * message Order { Money total = 1; }
+	 * message Money { Currency currency = 1; }
+	 * message Unused {}
+	 * enum Status {}
+	 * service Shop { rpc Buy(Order) returns (Order); rpc Cancel(Unused) returns (Unused); }
+	 * service Admin { rpc Reset(Unused) returns (Unused); }
+	 * </pre>
+	 *
+	 * with a comment on every element, and of the file it imports with Currency
+	 */
+	private static byte[] descriptorSet() {
+		ByteArrayOutputStream other = new ByteArrayOutputStream();
+		ProtoWire.writeString(other, FILE_NAME, OTHER);
+		ProtoWire.writeString(other, FILE_PACKAGE, "acme");
+		ProtoWire.writeBytes(other, FILE_ENUM, named("Currency"));
+
+		ByteArrayOutputStream shop = new ByteArrayOutputStream();
+		ProtoWire.writeString(shop, FILE_NAME, SHOP);
+		ProtoWire.writeString(shop, FILE_PACKAGE, "acme");
+		ProtoWire.writeBytes(shop, FILE_MESSAGE, message("Order", ".acme.Money"));
+		ProtoWire.writeBytes(shop, FILE_MESSAGE, message("Money", ".acme.Currency"));
+		ProtoWire.writeBytes(shop, FILE_MESSAGE, message("Unused"));
+		ProtoWire.writeBytes(shop, FILE_ENUM, named("Status"));
+		ProtoWire.writeBytes(shop, FILE_SERVICE, service("Shop", method("Buy", ".acme.Order"),
+				method("Cancel", ".acme.Unused")));
+		ProtoWire.writeBytes(shop, FILE_SERVICE, service("Admin", method("Reset", ".acme.Unused")));
+		ByteArrayOutputStream sourceInfo = new ByteArrayOutputStream();
+		location(sourceInfo, "package", FILE_PACKAGE);
+		location(sourceInfo, "Order", FILE_MESSAGE, 0);
+		location(sourceInfo, "Money", FILE_MESSAGE, 1);
+		location(sourceInfo, "Unused", FILE_MESSAGE, 2);
+		location(sourceInfo, "Status", FILE_ENUM, 0);
+		location(sourceInfo, "Shop", FILE_SERVICE, 0);
+		location(sourceInfo, "Buy", FILE_SERVICE, 0, SERVICE_METHOD, 0);
+		location(sourceInfo, "Cancel", FILE_SERVICE, 0, SERVICE_METHOD, 1);
+		location(sourceInfo, "Admin", FILE_SERVICE, 1);
+		location(sourceInfo, "Reset", FILE_SERVICE, 1, SERVICE_METHOD, 0);
+		ProtoWire.writeBytes(shop, FILE_SOURCE_INFO, sourceInfo.toByteArray());
+
+		ByteArrayOutputStream set = new ByteArrayOutputStream();
+		ProtoWire.writeBytes(set, SET_FILE, other.toByteArray());
+		ProtoWire.writeBytes(set, SET_FILE, shop.toByteArray());
+		return set.toByteArray();
+	}
+
+	private static byte[] named(String name) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeString(out, NAME, name);
+		return out.toByteArray();
+	}
+
+	private static byte[] message(String name, String... fieldTypes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeString(out, NAME, name);
+		for (String type : fieldTypes) {
+			ByteArrayOutputStream field = new ByteArrayOutputStream();
+			ProtoWire.writeString(field, NAME, "f");
+			ProtoWire.writeString(field, FIELD_TYPE_NAME, type);
+			ProtoWire.writeBytes(out, MESSAGE_FIELD, field.toByteArray());
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] method(String name, String type) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeString(out, NAME, name);
+		ProtoWire.writeString(out, METHOD_INPUT, type);
+		ProtoWire.writeString(out, METHOD_OUTPUT, type);
+		return out.toByteArray();
+	}
+
+	private static byte[] service(String name, byte[]... methods) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeString(out, NAME, name);
+		for (byte[] method : methods) {
+			ProtoWire.writeBytes(out, SERVICE_METHOD, method);
+		}
+		return out.toByteArray();
+	}
+
+	private static void location(ByteArrayOutputStream sourceInfo, String comment, int... path) {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		for (int element : path) {
+			ProtoWire.writeVarint(packed, element);
+		}
+		ByteArrayOutputStream location = new ByteArrayOutputStream();
+		ProtoWire.writeBytes(location, LOCATION_PATH, packed.toByteArray());
+		ProtoWire.writeString(location, LOCATION_LEADING_COMMENTS, comment);
+		ProtoWire.writeBytes(sourceInfo, SOURCE_LOCATION, location.toByteArray());
+	}
+
+	private static byte[] getFile(byte[] set, String name) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(set);
+		while (reader.next()) {
+			if (reader.field == SET_FILE && getName(reader.bytes()).equals(name))
+				return reader.bytes();
+		}
+		throw new AssertionError("no file " + name);
+	}
+
+	private static String getName(byte[] message) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(message);
+		while (reader.next()) {
+			if (reader.field == NAME)
+				return reader.string();
+		}
+		return "";
+	}
+
+	/**
+	 * @return the messages, enums and services of a file, in order
+	 */
+	private static List<String> getElements(byte[] file) {
+		List<String> elements = new ArrayList<String>();
+		ProtoWire.Reader reader = new ProtoWire.Reader(file);
+		while (reader.next()) {
+			if (reader.field == FILE_MESSAGE) {
+				elements.add("message " + getName(reader.bytes()));
+			} else if (reader.field == FILE_ENUM) {
+				elements.add("enum " + getName(reader.bytes()));
+			} else if (reader.field == FILE_SERVICE) {
+				elements.add("service " + getName(reader.bytes()));
+			}
+		}
+		return elements;
+	}
+
+	private static List<String> getMethods(byte[] file, int serviceIndex) {
+		List<String> methods = new ArrayList<String>();
+		int index = 0;
+		ProtoWire.Reader reader = new ProtoWire.Reader(file);
+		while (reader.next()) {
+			if (reader.field == FILE_SERVICE && index++ == serviceIndex) {
+				ProtoWire.Reader service = reader.message();
+				while (service.next()) {
+					if (service.field == SERVICE_METHOD) {
+						methods.add(getName(service.bytes()));
+					}
+				}
+			}
+		}
+		return methods;
+	}
+
+	/**
+	 * @return the leading comment of every location by its path
+	 */
+	private static Map<String, String> getComments(byte[] file) {
+		Map<String, String> comments = new LinkedHashMap<String, String>();
+		ProtoWire.Reader reader = new ProtoWire.Reader(file);
+		while (reader.next()) {
+			if (reader.field == FILE_SOURCE_INFO) {
+				ProtoWire.Reader sourceInfo = reader.message();
+				while (sourceInfo.next()) {
+					List<Long> path = new ArrayList<Long>();
+					String comment = null;
+					ProtoWire.Reader location = sourceInfo.message();
+					while (location.next()) {
+						if (location.field == LOCATION_PATH) {
+							path.addAll(location.varints());
+						} else if (location.field == LOCATION_LEADING_COMMENTS) {
+							comment = location.string();
+						}
+					}
+					comments.put(path.toString(), comment);
+				}
+			}
+		}
+		return comments;
+	}
+}
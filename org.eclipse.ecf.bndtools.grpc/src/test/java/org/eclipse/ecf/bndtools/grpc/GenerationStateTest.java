@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.lib.io.IO;
+
+public class GenerationStateTest {
+
+	private static final String HEADER = "// Generated by the protocol buffer compiler.  DO NOT EDIT!\n// source: ";
+
+	private File work;
+	private File out;
+	private Map<String, File> exes;
+
+	@Before
+	public void setUp() throws Exception {
+		work = Files.createTempDirectory("GenerationStateTest").toFile();
+		out = new File(work, "out");
+		exes = new HashMap<String, File>();
+		exes.put(GrpcGenerator.PROTOC_TARGET_NAME, new File(work, "exe/"
+				+ String.join("", Collections.nCopies(64, "a")) + "/" + GrpcGenerator.PROTOC_TARGET_NAME));
+		write("proto/common.proto", "syntax = \"proto3\";\nmessage Common {}\n");
+		write("proto/a.proto", "syntax = \"proto3\";\nimport \"common.proto\";\nmessage A {}\n");
+		write("proto/b.proto", "syntax = \"proto3\";\nmessage B {}\n");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		IO.delete(work);
+	}
+
+	@Test
+	public void testUpToDate() throws Exception {
+		GenerationState state = compute("a.proto", "b.proto");
+		assertNull(state.readPrevious());
+		assertEquals(Arrays.asList("a.proto", "b.proto"), state.getChangedInputs(null));
+		File a = generate("a/A.java", "a.proto");
+		File b = generate("b/B.java", "b.proto");
+		run(state, Arrays.asList("a.proto", "b.proto"), a, b);
+
+		state = compute("a.proto", "b.proto");
+		GenerationState previous = state.readPrevious();
+		assertNotNull(previous);
+		assertTrue(state.isUpToDate(previous));
+		assertEquals(Collections.emptyList(), state.getChangedInputs(previous));
+
+		// only the input of a missing file is generated again
+		IO.delete(b);
+		assertFalse(state.isUpToDate(previous));
+		assertEquals(Collections.singletonList("b.proto"), state.getChangedInputs(previous));
+	}
+
+	@Test
+	public void testChangedImport() throws Exception {
+		GenerationState state = compute("a.proto", "b.proto");
+		run(state, Arrays.asList("a.proto", "b.proto"), generate("a/A.java", "a.proto"),
+				generate("b/B.java", "b.proto"));
+
+		write("proto/common.proto", "syntax = \"proto3\";\nmessage Common { string name = 1; }\n");
+		state = compute("a.proto", "b.proto");
+		GenerationState previous = state.readPrevious();
+		assertFalse(state.isUpToDate(previous));
+		assertTrue(state.isIncremental(previous));
+		assertEquals(Collections.singletonList("a.proto"), state.getChangedInputs(previous));
+	}
+
+	@Test
+	public void testDeleteStale() throws Exception {
+		GenerationState state = compute("a.proto", "b.proto");
+		File a1 = generate("a/A1.java", "a.proto");
+		File a2 = generate("a/A2.java", "a.proto");
+		File b = generate("b/B.java", "b.proto");
+		run(state, Arrays.asList("a.proto", "b.proto"), a1, a2, b);
+
+		// a.proto does not generate A2 anymore, the files of b.proto are kept as it was not generated
+		write("proto/a.proto", "syntax = \"proto3\";\nimport \"common.proto\";\nmessage A1 {}\n");
+		state = compute("a.proto", "b.proto");
+		GenerationState previous = state.readPrevious();
+		assertEquals(Collections.singletonList("a.proto"), state.getChangedInputs(previous));
+		generate("a/A1.java", "a.proto");
+		assertEquals(Collections.singletonList(a2),
+				state.deleteStale(previous, Collections.singletonList("a.proto"), Collections.singletonList(a1)));
+		assertEquals(Arrays.asList(a1, b),
+				state.write(previous, Collections.singletonList("a.proto"), Collections.singletonList(a1)));
+		assertTrue(a1.isFile());
+		assertTrue(b.isFile());
+
+		// the files of a removed input are deleted, with the directories that became empty
+		state = compute("a.proto");
+		previous = state.readPrevious();
+		assertEquals(Collections.emptyList(), state.getChangedInputs(previous));
+		assertEquals(Collections.singletonList(b),
+				state.deleteStale(previous, Collections.<String> emptyList(), Collections.<File> emptyList()));
+		assertFalse(b.getParentFile().exists());
+		assertTrue(out.isDirectory());
+		assertEquals(Collections.singletonList(a1),
+				state.write(previous, Collections.<String> emptyList(), Collections.<File> emptyList()));
+	}
+
+	@Test
+	public void testHeaderlessFileOfOneInput() throws Exception {
+		GenerationState state = compute("a.proto", "b.proto");
+		run(state, Arrays.asList("a.proto", "b.proto"), generate("a/A.java", "a.proto"),
+				generate("b/B.java", "b.proto"));
+
+		// a file without a header that is written by a run of one input comes from that input
+		write("proto/b.proto", "syntax = \"proto3\";\nmessage B { int32 id = 1; }\n");
+		state = compute("a.proto", "b.proto");
+		GenerationState previous = state.readPrevious();
+		assertEquals(Collections.singletonList("b.proto"), state.getChangedInputs(previous));
+		File b = generate("b/B.java", "b.proto");
+		File resource = new File(out, "b/b.properties");
+		write("out/b/b.properties", "b=1\n");
+		run(state, Collections.singletonList("b.proto"), b, resource);
+
+		state = compute("a.proto", "b.proto");
+		previous = state.readPrevious();
+		assertTrue(state.isIncremental(previous));
+		for (GenerationState.Output output : previous.getOutputs()) {
+			if (output.file.equals(resource)) {
+				assertEquals("b.proto", output.input);
+				assertEquals(GenerationState.UNKNOWN, output.plugin);
+			}
+		}
+	}
+
+	@Test
+	public void testHeaderlessFileOfManyInputs() throws Exception {
+		GenerationState state = compute("a.proto", "b.proto");
+		File a = generate("a/A.java", "a.proto");
+		File b = generate("b/B.java", "b.proto");
+		File resource = new File(out, "resource.txt");
+		write("out/resource.txt", "no header\n");
+		run(state, Arrays.asList("a.proto", "b.proto"), a, b, resource);
+
+		// the input of the file is unknown, so the next generation is a full one that deletes it if it is not written
+		write("proto/b.proto", "syntax = \"proto3\";\nmessage B { int32 id = 1; }\n");
+		state = compute("a.proto", "b.proto");
+		GenerationState previous = state.readPrevious();
+		assertFalse(state.isIncremental(previous));
+		assertEquals(Arrays.asList("a.proto", "b.proto"), state.getChangedInputs(previous));
+		assertEquals(Collections.singletonList(resource),
+				state.deleteStale(previous, Arrays.asList("a.proto", "b.proto"), Arrays.asList(a, b)));
+		assertEquals(Arrays.asList(a, b),
+				state.write(previous, Arrays.asList("a.proto", "b.proto"), Arrays.asList(a, b)));
+
+		state = compute("a.proto", "b.proto");
+		assertTrue(state.isIncremental(state.readPrevious()));
+	}
+
+	@Test
+	public void testStateFileInCacheDir() throws Exception {
+		File legacy = write("out/.grpc-generator.state", "options=x\nfingerprint=y\n");
+		GenerationState state = compute("a.proto", "b.proto");
+		// the state of the output directory is not taken from the output directory
+		assertNull(state.readPrevious());
+		run(state, Arrays.asList("a.proto", "b.proto"), generate("a/A.java", "a.proto"),
+				generate("b/B.java", "b.proto"));
+		assertFalse(legacy.exists());
+		File[] stateFiles = new File(work, "cache/" + GenerationState.STATE_DIR).listFiles();
+		assertNotNull(stateFiles);
+		assertEquals(1, stateFiles.length);
+		assertTrue(stateFiles[0].getName().matches("[0-9a-f]{64}\\.state"));
+		List<String> outFiles = new ArrayList<String>(Arrays.asList(out.list()));
+		Collections.sort(outFiles);
+		assertEquals(Arrays.asList("a", "b"), outFiles);
+	}
+
+	private GenerationState compute(String... inputs) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-I=proto");
+		args.addAll(Arrays.asList(inputs));
+		GenerationRequest.Builder builder = GenerationRequest.builder().workingDirectory(work);
+		builder.cacheDir(new File(work, "cache")).javaOut("out").grpc(false);
+		GenerationRequest request = builder.protocArguments(args).build();
+		return GenerationState.compute(request, new ProtocArguments(work, args, Collections.<String> emptyList()),
+				exes);
+	}
+
+	/**
+	 * What the generator does after a successful run
+	 */
+	private static void run(GenerationState state, List<String> generated, File... written) throws Exception {
+		GenerationState previous = state.readPrevious();
+		state.deleteStale(previous, generated, Arrays.asList(written));
+		state.write(previous, generated, Arrays.asList(written));
+	}
+
+	private File generate(String path, String input) throws Exception {
+		return write("out/" + path, HEADER + input + "\n");
+	}
+
+	private File write(String path, String content) throws Exception {
+		File file = new File(work, path);
+		file.getParentFile().mkdirs();
+		IO.store(content, file);
+		return file;
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.lib.io.IO;
+
+public class OutputStageTest {
+
+	private File work;
+
+	@Before
+	public void setUp() throws Exception {
+		work = Files.createTempDirectory("OutputStageTest").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		IO.delete(work);
+	}
+
+	@Test
+	public void testCommitOnlyChangedFiles() throws Exception {
+		GenerationRequest request = request("out");
+		File out = new File(work, "out");
+		File a = new File(out, "a/A.java");
+		File b = new File(out, "b/B.java");
+		try (OutputStage stage = new OutputStage(request, false)) {
+			File staging = stage(stage, request);
+			write(new File(staging, "a/A.java"), "class A {}\n");
+			write(new File(staging, "b/B.java"), "class B {}\n");
+			assertEquals(Arrays.asList(a, b), stage.getFiles());
+			assertEquals(Arrays.asList(a, b), stage.commit());
+		}
+		assertEquals("class A {}\n", IO.collect(a));
+		long time = System.currentTimeMillis() - 60000L;
+		assertTrue(a.setLastModified(time));
+		assertTrue(b.setLastModified(time));
+
+		try (OutputStage stage = new OutputStage(request, false)) {
+			File staging = stage(stage, request);
+			write(new File(staging, "a/A.java"), "class A {}\n");
+			write(new File(staging, "b/B.java"), "class B { int b; }\n");
+			assertEquals(Collections.singletonList(b), stage.commit());
+		}
+		// the unchanged file is not touched
+		assertEquals(time, a.lastModified());
+		assertEquals("class B { int b; }\n", IO.collect(b));
+	}
+
+	@Test
+	public void testStageReplacesOutputDirectory() throws Exception {
+		GenerationRequest request = request("lite:out");
+		try (OutputStage stage = new OutputStage(request, false)) {
+			GenerationRequest staged = stage.stage(request);
+			File staging = stage.getStagingDirs().get(0);
+			assertEquals("lite:" + staging.getAbsolutePath(), staged.getJavaOut());
+			assertTrue(staging.isDirectory());
+			assertEquals(Collections.singletonList(new File(work, "out")), stage.getOutputDirs());
+		}
+	}
+
+	@Test
+	public void testArchive() throws Exception {
+		GenerationRequest request = request("src.srcjar");
+		File archive = new File(work, "src.srcjar");
+		try (OutputStage stage = new OutputStage(request, false)) {
+			File staging = stage(stage, request);
+			write(new File(staging, "b/B.java"), "class B {}\n");
+			write(new File(staging, "a/A.java"), "class A {}\n");
+			assertEquals(Collections.singletonList(archive), stage.commit());
+		}
+		byte[] first = IO.read(archive);
+		try (ZipFile zip = new ZipFile(archive)) {
+			List<String> names = new ArrayList<String>();
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				ZipEntry entry = e.nextElement();
+				names.add(entry.getName());
+				assertEquals(ZipEntry.STORED, entry.getMethod());
+			}
+			assertEquals(Arrays.asList("a/A.java", "b/B.java"), names);
+		}
+
+		// written in another order and at another time, the archive is the same and is not written again
+		Thread.sleep(10L);
+		try (OutputStage stage = new OutputStage(request, false)) {
+			File staging = stage(stage, request);
+			write(new File(staging, "a/A.java"), "class A {}\n");
+			write(new File(staging, "b/B.java"), "class B {}\n");
+			assertEquals(Collections.emptyList(), stage.commit());
+			assertEquals(Collections.singletonList(archive), stage.getFiles());
+		}
+		assertArrayEquals(first, IO.read(archive));
+
+		try (OutputStage stage = new OutputStage(request, false)) {
+			File staging = stage(stage, request);
+			write(new File(staging, "a/A.java"), "class A { int a; }\n");
+			write(new File(staging, "b/B.java"), "class B {}\n");
+			assertEquals(Collections.singletonList(archive), stage.commit());
+		}
+		assertFalse(Arrays.equals(first, IO.read(archive)));
+		String[] left = work.list();
+		assertEquals(Collections.singletonList("src.srcjar"), Arrays.asList(left));
+	}
+
+	@Test
+	public void testCompressedArchiveIsReproducible() throws Exception {
+		GenerationRequest request = request("src.srcjar");
+		File archive = new File(work, "src.srcjar");
+		byte[] first = null;
+		for (int i = 0; i < 2; i++) {
+			IO.delete(archive);
+			try (OutputStage stage = new OutputStage(request, true)) {
+				File staging = stage(stage, request);
+				write(new File(staging, i == 0 ? "a/A.java" : "b/B.java"), i == 0 ? "class A {}\n" : "class B {}\n");
+				write(new File(staging, i == 0 ? "b/B.java" : "a/A.java"), i == 0 ? "class B {}\n" : "class A {}\n");
+				stage.commit();
+			}
+			if (first == null) {
+				first = IO.read(archive);
+			} else {
+				assertArrayEquals(first, IO.read(archive));
+			}
+			Thread.sleep(10L);
+		}
+		try (ZipFile zip = new ZipFile(archive)) {
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry("a/A.java").getMethod());
+		}
+	}
+
+	private GenerationRequest request(String javaOut) {
+		GenerationRequest.Builder builder = GenerationRequest.builder().workingDirectory(work).javaOut(javaOut);
+		return builder.grpc(false).protocArguments(Collections.singletonList("a.proto")).build();
+	}
+
+	private static File stage(OutputStage stage, GenerationRequest request) throws Exception {
+		stage.stage(request);
+		return stage.getStagingDirs().get(0);
+	}
+
+	private static void write(File file, String content) throws Exception {
+		file.getParentFile().mkdirs();
+		IO.store(content, file);
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class PluginMultiplexerTest {
+
+	private final File outDir = new File("out").getAbsoluteFile();
+	private final PluginMultiplexer.Plugin grpc = new PluginMultiplexer.Plugin(GrpcGenerator.GRPC_ID,
+			new File("protoc-gen-grpc-java"), null, outDir);
+	private final PluginMultiplexer.Plugin osgi = new PluginMultiplexer.Plugin(GrpcGenerator.GRPC_OSGI_ID,
+			new File("protoc-gen-grpc-osgi-generator"), null, outDir);
+	private final Map<File, byte[]> files = new LinkedHashMap<File, byte[]>();
+	private final StringBuilder err = new StringBuilder();
+
+	@Test
+	public void testMerge() throws Exception {
+		assertTrue(PluginMultiplexer.merge(grpc, response(file("a/AGrpc.java", null, "a")), files, err));
+		assertTrue(PluginMultiplexer.merge(osgi, response(file("a/AService.java", null, "b")), files, err));
+		assertEquals(2, files.size());
+		assertEquals("a", content("a/AGrpc.java"));
+		assertEquals("b", content("a/AService.java"));
+		assertEquals("", err.toString());
+	}
+
+	@Test
+	public void testMergeContinuation() throws Exception {
+		assertTrue(PluginMultiplexer.merge(grpc, response(file("A.java", null, "one "), file(null, null, "two")),
+				files, err));
+		assertEquals("one two", content("A.java"));
+	}
+
+	@Test
+	public void testMergeInsertionPoint() throws Exception {
+		assertTrue(PluginMultiplexer.merge(grpc,
+				response(file("A.java", null, "class A {\n  // @@protoc_insertion_point(body)\n}\n")), files, err));
+		assertTrue(PluginMultiplexer.merge(osgi, response(file("A.java", "body", "int x;\n\nint y;\n")), files, err));
+		assertEquals("class A {\n  int x;\n\n  int y;\n  // @@protoc_insertion_point(body)\n}\n", content("A.java"));
+	}
+
+	@Test
+	public void testMergeSameFileTwice() throws Exception {
+		assertTrue(PluginMultiplexer.merge(grpc, response(file("A.java", null, "a")), files, err));
+		assertFalse(PluginMultiplexer.merge(osgi, response(file("A.java", null, "b")), files, err));
+		assertEquals("A.java: Tried to write the same file twice.\n", err.toString());
+		assertEquals("a", content("A.java"));
+	}
+
+	@Test
+	public void testMergeSameFileTwiceInOneResponse() throws Exception {
+		assertFalse(PluginMultiplexer.merge(grpc, response(file("A.java", null, "a"), file("A.java", null, "b")),
+				files, err));
+		assertEquals("A.java: Tried to write the same file twice.\n", err.toString());
+	}
+
+	@Test
+	public void testMergeError() throws Exception {
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		ProtoWire.writeString(response, 1, "something went wrong");
+		assertFalse(PluginMultiplexer.merge(grpc, response.toByteArray(), files, err));
+		assertEquals("--" + GrpcGenerator.GRPC_ID + "_out: something went wrong\n", err.toString());
+		assertTrue(files.isEmpty());
+	}
+
+	@Test
+	public void testMergeInsertionPointNotFound() throws Exception {
+		assertTrue(PluginMultiplexer.merge(grpc, response(file("A.java", null, "class A {}\n")), files, err));
+		assertFalse(PluginMultiplexer.merge(osgi, response(file("A.java", "body", "int x;\n")), files, err));
+		assertEquals("--" + GrpcGenerator.GRPC_OSGI_ID + "_out: A.java: insertion point \"body\" not found.\n",
+				err.toString());
+	}
+
+	@Test
+	public void testMergeInsertIntoMissingFile() throws Exception {
+		assertFalse(PluginMultiplexer.merge(grpc, response(file("Missing.java", "body", "int x;\n")), files, err));
+		assertEquals("--" + GrpcGenerator.GRPC_ID + "_out: Missing.java: Tried to insert into file that doesn't exist.\n",
+				err.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeInvalidFileName() throws Exception {
+		PluginMultiplexer.merge(grpc, response(file("../A.java", null, "a")), files, err);
+	}
+
+	@Test
+	public void testInsert() {
+		assertEquals("a\nX\n// @@protoc_insertion_point(p)\nb\n",
+				insert("a\n// @@protoc_insertion_point(p)\nb\n", "p", "X\n"));
+		// indented like the line of the insertion point, except for empty lines
+		assertEquals("{\n\tX\n\n\tY\n\t// @@protoc_insertion_point(p)\n}\n",
+				insert("{\n\t// @@protoc_insertion_point(p)\n}\n", "p", "X\n\nY\n"));
+		assertNull(PluginMultiplexer.insert(bytes("// @@protoc_insertion_point(other)\n"), "p", bytes("X\n")));
+	}
+
+	@Test
+	public void testCompilerVersion() throws Exception {
+		byte[] version = PluginMultiplexer.getCompilerVersion();
+		// the /exe/versions resource is only there when the bundle resources are on the class path
+		Assume.assumeTrue(version.length > 0);
+		List<Long> numbers = new ArrayList<Long>();
+		String suffix = null;
+		ProtoWire.Reader reader = new ProtoWire.Reader(version);
+		while (reader.next()) {
+			if (reader.field == 4) {
+				suffix = reader.string();
+			} else {
+				numbers.add(reader.value);
+			}
+		}
+		assertEquals(3, numbers.size());
+		assertEquals("", suffix);
+		// protoc reports the version of its C++ runtime, which is 4.x since protobuf 22
+		assertTrue(numbers.get(1) < 22 || numbers.get(0) == 4L);
+	}
+
+	private String content(String name) {
+		return new String(files.get(new File(outDir, name)), StandardCharsets.UTF_8);
+	}
+
+	private static String insert(String into, String insertionPoint, String content) {
+		return new String(PluginMultiplexer.insert(bytes(into), insertionPoint, bytes(content)),
+				StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] file(String name, String insertionPoint, String content) {
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		if (name != null) {
+			ProtoWire.writeString(file, 1, name);
+		}
+		if (insertionPoint != null) {
+			ProtoWire.writeString(file, 2, insertionPoint);
+		}
+		ProtoWire.writeString(file, 15, content);
+		return file.toByteArray();
+	}
+
+	private static byte[] response(byte[]... responseFiles) {
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		for (byte[] file : responseFiles) {
+			ProtoWire.writeBytes(response, 15, file);
+		}
+		return response.toByteArray();
+	}
+}
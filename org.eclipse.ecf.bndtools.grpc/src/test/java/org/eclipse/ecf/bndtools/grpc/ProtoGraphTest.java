@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import aQute.lib.io.IO;
+
+public class ProtoGraphTest {
+
+	private File work;
+
+	@Before
+	public void setUp() throws Exception {
+		work = Files.createTempDirectory("ProtoGraphTest").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		IO.delete(work);
+	}
+
+	@Test
+	public void testTokenize() {
+		assertEquals(Arrays.asList("import", "public", "\"a.proto", ";", "service", "S", "{", "}"),
+				ProtoGraph.tokenize("import public \"a.proto\"; // import \"b.proto\";\nservice S /* service T { */ {}"));
+		// escapes, single quotes and adjacent strings
+		assertEquals(Arrays.asList("option", "x", "=", "\"a\"b'c", ";"),
+				ProtoGraph.tokenize("option x = \"a\\\"b\" '\\'c';"));
+		assertEquals(Arrays.asList("a.b_c", "=", "1", ";"), ProtoGraph.tokenize("a.b_c=1;"));
+	}
+
+	@Test
+	public void testImportsAndServices() throws Exception {
+		write("proto/a.proto", "syntax = \"proto3\";\n" //
+				+ "// import \"commented.proto\";\n" //
+				+ "/* service Commented {} */\n" //
+				+ "import \"b.proto\";\n" //
+				+ "import weak \"c.proto\";\n" //
+				+ "import \"google/protobuf/empty.proto\";\n" //
+				+ "option java_package = \"service X {\";\n" //
+				+ "message M {} service S { rpc Get(M) returns (M); }\n");
+		write("proto/b.proto", "syntax = \"proto3\";\nmessage B { string service = 1; }\n");
+		write("proto/c.proto", "syntax = \"proto3\";\n");
+		ProtoGraph graph = graph("a.proto", "b.proto");
+		assertEquals(new ArrayList<String>(Arrays.asList("b.proto", "c.proto", "google/protobuf/empty.proto")),
+				new ArrayList<String>(graph.getTransitiveImports("a.proto")));
+		assertTrue(graph.hasServices("a.proto"));
+		assertFalse(graph.hasServices("b.proto"));
+		// a file that is not in any proto path may declare services
+		assertTrue(graph.hasServices("google/protobuf/empty.proto"));
+		assertEquals(new File(work, "proto/b.proto"), graph.getFile("b.proto"));
+	}
+
+	@Test
+	public void testShardKeepsDependentInputsTogether() throws Exception {
+		write("proto/common.proto", "syntax = \"proto3\";\nmessage Common {}\n");
+		write("proto/a.proto", "syntax = \"proto3\";\nimport \"common.proto\";\nmessage A {}\n");
+		write("proto/b.proto", "syntax = \"proto3\";\nimport \"a.proto\";\nmessage B {}\n");
+		// the independent inputs cost more than the dependent ones together, so that these stay one unit
+		String padding = String.join("", Collections.nCopies(10, "// padding padding padding\n"));
+		write("proto/x.proto", "syntax = \"proto3\";\n" + padding + "message X {}\n");
+		write("proto/y.proto", "syntax = \"proto3\";\n" + padding + "message Y {}\n");
+		ProtoGraph graph = graph("y.proto", "common.proto", "x.proto", "b.proto");
+		List<List<String>> shards = graph.shard(3);
+		assertEquals(3, shards.size());
+		List<String> all = new ArrayList<String>();
+		for (List<String> shard : shards) {
+			assertFalse(shard.isEmpty());
+			if (shard.contains("b.proto")) {
+				assertEquals(Arrays.asList("common.proto", "b.proto"), shard);
+			}
+			all.addAll(shard);
+		}
+		Collections.sort(all);
+		assertEquals(Arrays.asList("b.proto", "common.proto", "x.proto", "y.proto"), all);
+	}
+
+	@Test
+	public void testShardCount() throws Exception {
+		List<String> inputs = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			write("proto/f" + i + ".proto", "syntax = \"proto3\";\nmessage F" + i + " {}\n");
+			inputs.add("f" + i + ".proto");
+		}
+		ProtoGraph graph = graph(inputs.toArray(new String[0]));
+		assertEquals(Collections.singletonList(inputs), graph.shard(1));
+		assertEquals(2, graph.shard(2).size());
+		// never more shards than inputs, and every shard in the order of the inputs
+		List<List<String>> shards = graph.shard(8);
+		assertEquals(5, shards.size());
+		for (List<String> shard : shards) {
+			assertEquals(1, shard.size());
+		}
+		for (List<String> shard : graph.shard(2)) {
+			List<String> sorted = new ArrayList<String>(shard);
+			sorted.sort((a, b) -> Integer.compare(inputs.indexOf(a), inputs.indexOf(b)));
+			assertEquals(sorted, shard);
+		}
+	}
+
+	@Test
+	public void testShardSpreadsLargeGroup() throws Exception {
+		StringBuilder services = new StringBuilder("syntax = \"proto3\";\n");
+		for (int i = 0; i < 8; i++) {
+			services.append("service S").append(i).append(" {}\n");
+		}
+		write("proto/big.proto", services.toString());
+		write("proto/user.proto", "syntax = \"proto3\";\nimport \"big.proto\";\n");
+		write("proto/other.proto", "syntax = \"proto3\";\n");
+		// big and user are more than half of the cost together, so they are spread over both shards
+		ProtoGraph graph = graph("big.proto", "user.proto", "other.proto");
+		List<List<String>> shards = graph.shard(2);
+		assertEquals(2, shards.size());
+		assertEquals(Collections.singletonList("big.proto"), shards.get(0));
+		assertEquals(Arrays.asList("user.proto", "other.proto"), shards.get(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInputNotInProtoPath() throws Exception {
+		write("elsewhere/a.proto", "syntax = \"proto3\";\n");
+		graph("elsewhere/a.proto");
+	}
+
+	private ProtoGraph graph(String... inputs) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-I=proto");
+		args.add("--java_out=out");
+		args.addAll(Arrays.asList(inputs));
+		return new ProtoGraph(new ProtocArguments(work, args, Collections.<String> emptyList()));
+	}
+
+	private void write(String path, String content) throws Exception {
+		File file = new File(work, path);
+		file.getParentFile().mkdirs();
+		IO.store(content, file);
+	}
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Composent, Inc. aQute SARL, and others. All rights reserved.
+ * This program and the accompanying materials are made available under the terms
+ * of the Apache Public License v2.0 which is available at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Contributors: Composent, Inc., aQute SARL - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.bndtools.grpc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ProtoWireTest {
+
+	@Test
+	public void testVarintRoundTrip() {
+		long[] values = { 0L, 1L, 127L, 128L, 300L, 16383L, 16384L, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1L };
+		for (long value : values) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ProtoWire.writeTag(out, 3, ProtoWire.VARINT);
+			ProtoWire.writeVarint(out, value);
+			ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+			assertTrue(reader.next());
+			assertEquals(3, reader.field);
+			assertEquals(ProtoWire.VARINT, reader.wireType);
+			assertEquals(value, reader.value);
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void testVarintEncoding() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeVarint(out, 300L);
+		assertArrayEquals(new byte[] { (byte) 0xac, 0x02 }, out.toByteArray());
+		out.reset();
+		// negative numbers always take ten bytes
+		ProtoWire.writeVarint(out, -1L);
+		assertEquals(10, out.size());
+	}
+
+	@Test
+	public void testTagRoundTrip() {
+		int[] fields = { 1, 15, 16, 2047, 2048, (1 << 29) - 1 };
+		for (int field : fields) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ProtoWire.writeString(out, field, "value");
+			ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+			assertTrue(reader.next());
+			assertEquals(field, reader.field);
+			assertEquals(ProtoWire.LENGTH_DELIMITED, reader.wireType);
+			assertEquals("value", reader.string());
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void testNestedMessage() {
+		ByteArrayOutputStream inner = new ByteArrayOutputStream();
+		ProtoWire.writeString(inner, 1, "name");
+		ProtoWire.writeTag(inner, 2, ProtoWire.VARINT);
+		ProtoWire.writeVarint(inner, 42L);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeBytes(out, 4, inner.toByteArray());
+		ProtoWire.writeString(out, 5, "after");
+
+		ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+		assertTrue(reader.next());
+		assertArrayEquals(inner.toByteArray(), reader.bytes());
+		ProtoWire.Reader message = reader.message();
+		assertTrue(message.next());
+		assertEquals("name", message.string());
+		assertTrue(message.next());
+		assertEquals(42L, message.value);
+		assertFalse(message.next());
+		assertTrue(reader.next());
+		assertEquals("after", reader.string());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void testSkipsFixedFields() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeTag(out, 1, ProtoWire.FIXED32);
+		out.write(new byte[4], 0, 4);
+		ProtoWire.writeTag(out, 2, ProtoWire.FIXED64);
+		out.write(new byte[8], 0, 8);
+		ProtoWire.writeString(out, 3, "last");
+		ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+		assertTrue(reader.next());
+		assertEquals(1, reader.field);
+		assertTrue(reader.next());
+		assertEquals(2, reader.field);
+		assertTrue(reader.next());
+		assertEquals("last", reader.string());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void testPackedAndUnpackedVarints() {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		ProtoWire.writeVarint(packed, 1L);
+		ProtoWire.writeVarint(packed, 300L);
+		ProtoWire.writeVarint(packed, 2L);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeBytes(out, 1, packed.toByteArray());
+		ProtoWire.writeTag(out, 1, ProtoWire.VARINT);
+		ProtoWire.writeVarint(out, 7L);
+		ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+		assertTrue(reader.next());
+		assertEquals(Arrays.asList(1L, 300L, 2L), reader.varints());
+		assertTrue(reader.next());
+		assertEquals(Arrays.asList(7L), reader.varints());
+	}
+
+	@Test
+	public void testCopyField() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeString(out, 1, "a");
+		ProtoWire.writeTag(out, 2, ProtoWire.VARINT);
+		ProtoWire.writeVarint(out, 300L);
+		ProtoWire.Reader reader = new ProtoWire.Reader(out.toByteArray());
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		while (reader.next()) {
+			reader.copyField(copy);
+		}
+		assertArrayEquals(out.toByteArray(), copy.toByteArray());
+	}
+
+	@Test
+	public void testTruncatedVarint() {
+		assertInvalid(new byte[] { 0x08, (byte) 0x80 }, "Truncated message");
+	}
+
+	@Test
+	public void testTruncatedTag() {
+		assertInvalid(new byte[] { (byte) 0x80 }, "Truncated message");
+	}
+
+	@Test
+	public void testTruncatedLengthDelimited() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeTag(out, 1, ProtoWire.LENGTH_DELIMITED);
+		ProtoWire.writeVarint(out, 5L);
+		out.write(new byte[2], 0, 2);
+		assertInvalid(out.toByteArray(), "Truncated message");
+	}
+
+	@Test
+	public void testTruncatedFixed() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtoWire.writeTag(out, 1, ProtoWire.FIXED64);
+		out.write(new byte[7], 0, 7);
+		assertInvalid(out.toByteArray(), "Truncated message");
+	}
+
+	@Test
+	public void testMalformedVarint() {
+		byte[] bytes = new byte[12];
+		Arrays.fill(bytes, (byte) 0xff);
+		bytes[0] = 0x08;
+		assertInvalid(bytes, "Malformed varint");
+	}
+
+	@Test
+	public void testTruncatedNestedMessage() {
+		// the length of the nested message is within the outer message, but its field is not
+		byte[] bytes = { 0x0a, 0x02, 0x12, 0x05 };
+		ProtoWire.Reader reader = new ProtoWire.Reader(bytes);
+		assertTrue(reader.next());
+		ProtoWire.Reader message = reader.message();
+		try {
+			message.next();
+			fail("expected an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Truncated message", e.getMessage());
+		}
+	}
+
+	private static void assertInvalid(byte[] bytes, String expected) {
+		ProtoWire.Reader reader = new ProtoWire.Reader(bytes);
+		try {
+			reader.next();
+			fail("expected an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals(expected, e.getMessage());
+		}
+	}
+}